@@ -0,0 +1,80 @@
+plugins {
+    id("java")
+    id("jinix") version "0.0.1"
+}
+
+group = "org.example"
+version = "1.0"
+
+repositories {
+    mavenLocal()
+    mavenCentral()
+}
+
+val jmhVersion = "1.37"
+
+jinix {
+    march = "native"    // Results are only meaningful on the machine they were built on anyway
+}
+
+// The same sources compiled without Jinix, which only transforms the main source set
+val plain: SourceSet by sourceSets.creating {
+    java.setSrcDirs(sourceSets.main.get().java.srcDirs)
+}
+configurations[plain.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+
+dependencies {
+    implementation("org.openjdk.jmh:jmh-core:$jmhVersion")
+    annotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+    add(plain.annotationProcessorConfigurationName, "org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+fun registerJmh(name: String, sourceSet: SourceSet, nativized: Boolean) = tasks.register<JavaExec>(name) {
+    group = "benchmark"
+    description = "Runs benchmarks " + if (nativized) "nativized by Jinix" else "as plain Java"
+    dependsOn(sourceSet.classesTaskName)
+
+    val results = layout.buildDirectory.file("reports/jmh/$name.json")
+    outputs.file(results)
+    outputs.upToDateWhen { false }
+
+    classpath = sourceSet.runtimeClasspath
+    mainClass = "org.openjdk.jmh.Main"
+    jvmArgs("-Djinix.nativized=$nativized")
+    // Extra JMH options, e.g. -Pjmh="Upcall -f 1 -wi 1 -i 3"
+    args(providers.gradleProperty("jmh").getOrElse("").split(" ").filter { it.isNotBlank() })
+    args("-rf", "json", "-rff", results.get().asFile.absolutePath)
+    doFirst { results.get().asFile.parentFile.mkdirs() }
+}
+
+val jmhPlain = registerJmh("jmhPlain", plain, false)
+val jmhNative = registerJmh("jmhNative", sourceSets.main.get(), true)
+
+tasks.register("jmh") {
+    group = "benchmark"
+    description = "Runs benchmarks as plain Java and nativized, and compares the results"
+    dependsOn(jmhPlain, jmhNative)
+    jmhNative.get().mustRunAfter(jmhPlain)
+
+    val plainResults = layout.buildDirectory.file("reports/jmh/jmhPlain.json")
+    val nativeResults = layout.buildDirectory.file("reports/jmh/jmhNative.json")
+    doLast {
+        @Suppress("UNCHECKED_CAST")
+        fun scores(file: File) = (groovy.json.JsonSlurper().parse(file) as List<Map<String, Any>>).associate {
+            val params = (it["params"] as Map<*, *>?)?.entries?.joinToString(",", " ") { e -> "${e.key}=${e.value}" } ?: ""
+            val metric = it["primaryMetric"] as Map<*, *>
+            val transitions = ((it["secondaryMetrics"] as Map<*, *>)["jniTransitionsPerCall"] as Map<*, *>?)?.get("score") as? Number
+            "${(it["benchmark"] as String).substringAfterLast('.')}$params ${it["mode"]}" to
+                    Triple(metric["score"] as Number, metric["scoreUnit"], transitions)
+        }
+
+        val plainScores = scores(plainResults.get().asFile)
+        val nativeScores = scores(nativeResults.get().asFile)
+        println("%-40s %14s %14s %10s %12s".format("Benchmark", "Plain", "Nativized", "Unit", "Transitions"))
+        plainScores.forEach { (name, plain) ->
+            val nativized = nativeScores[name] ?: return@forEach
+            println("%-40s %14.3f %14.3f %10s %12.1f".format(name, plain.first.toDouble(), nativized.first.toDouble(),
+                plain.second, nativized.third?.toDouble() ?: Double.NaN))
+        }
+    }
+}
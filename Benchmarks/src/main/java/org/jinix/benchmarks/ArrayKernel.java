@@ -0,0 +1,21 @@
+package org.jinix.benchmarks;
+
+import org.jinix.Nativize;
+
+public class ArrayKernel {
+    @Nativize
+    public long dot(int[] a, int[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += (long) a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Nativize
+    public void scale(int[] a, int k) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] = a[i] * k;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.jinix.benchmarks;
+
+import org.jinix.Nativize;
+
+public class FieldKernel {
+    private int counter = 0;
+    private long total = 0;
+
+    @Nativize
+    public long run(int n) {
+        for (int i = 0; i < n; i++) {
+            counter++;
+            total += counter ^ i;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,58 @@
+package org.jinix.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same kernels as plain Java (gradle jmhPlain) and nativized (gradle jmhNative), gradle jmh compares both
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JinixBenchmarks {
+    @Param({"16", "4096"})
+    public int size;
+
+    private final FieldKernel fieldKernel = new FieldKernel();
+    private final UpcallKernel upcallKernel = new UpcallKernel();
+    private final ArrayKernel arrayKernel = new ArrayKernel();
+    private int[] a;
+    private int[] b;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var random = new Random(42);
+        a = random.ints(size, -1000, 1000).toArray();
+        b = random.ints(size, -1000, 1000).toArray();
+    }
+
+    @Benchmark
+    public long fieldLoop(JniTransitions transitions) {
+        transitions.record();
+        return fieldKernel.run(size);
+    }
+
+    @Benchmark
+    public long upcalls(JniTransitions transitions) {
+        transitions.record();
+        return upcallKernel.run(size);
+    }
+
+    @Benchmark
+    public long arrayDot(JniTransitions transitions) {
+        transitions.record();
+        return arrayKernel.dot(a, b);
+    }
+
+    @Benchmark
+    public int[] arrayScale(JniTransitions transitions) {
+        transitions.record();
+        arrayKernel.scale(a, -1);
+        return a;
+    }
+}
@@ -0,0 +1,51 @@
+package org.jinix.benchmarks;
+
+import org.jinix.Jinix;
+import org.jinix.JinixMetrics;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts crossings between Java and native code per call: one for entering a nativized method and two for each upcall.
+ * They are read from the counters of a library built with -Pjinix.metrics=true, which slow down short calls, so other
+ * nativized runs report NaN. Runs without the library report 0. Reported by JMH next to the primary result
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class JniTransitions {
+    // Set by the jmhNative task, plain benchmarks run the same classes without Jinix
+    static final boolean NATIVIZED = Boolean.getBoolean("jinix.nativized");
+
+    static {
+        if (NATIVIZED) Jinix.load();
+    }
+
+    private long calls;
+    private long start;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        calls = 0;
+        start = transitions();
+    }
+
+    public void record() {
+        calls++;
+    }
+
+    public double jniTransitionsPerCall() {
+        if (calls == 0 || !Jinix.isLoaded()) return 0;
+        var transitions = transitions();
+        return transitions < 0 ? Double.NaN : (double) (transitions - start) / calls;
+    }
+
+    // Of all nativized methods on all threads, or -1 if the library is not instrumented
+    private static long transitions() {
+        var methods = JinixMetrics.read();
+        if (methods.isEmpty()) return -1;
+        return methods.stream().mapToLong(method -> method.getCalls() + 2 * method.getUpcalls()).sum();
+    }
+}
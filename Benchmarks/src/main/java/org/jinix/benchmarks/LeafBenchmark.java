@@ -0,0 +1,25 @@
+package org.jinix.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A method so small that the cost of the JNI transition dominates
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeafBenchmark {
+    private final LeafKernel leafKernel = new LeafKernel();
+    private int argument;
+
+    @Benchmark
+    public int leaf(JniTransitions transitions) {
+        transitions.record();
+        return leafKernel.mix(argument++, 7);
+    }
+}
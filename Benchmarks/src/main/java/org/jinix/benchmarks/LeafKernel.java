@@ -0,0 +1,10 @@
+package org.jinix.benchmarks;
+
+import org.jinix.Nativize;
+
+public class LeafKernel {
+    @Nativize
+    public int mix(int a, int b) {
+        return (a * 31) ^ b;
+    }
+}
@@ -0,0 +1,19 @@
+package org.jinix.benchmarks;
+
+import org.jinix.Nativize;
+
+public class UpcallKernel {
+    // Virtual, so nativized code has to call it through JNI
+    public int value(int i) {
+        return i & 7;
+    }
+
+    @Nativize
+    public long run(int n) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += value(i);
+        }
+        return sum;
+    }
+}
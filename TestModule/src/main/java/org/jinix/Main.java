@@ -1,10 +1,21 @@
 package org.jinix;
 
+import java.util.Arrays;
+
 public class Main {
     public static void main(String[] args) {
         Jinix.load();
         var result = new Main().testNative(100);
         System.out.println(result);
+
+        // Parameters that are the same Java array see each other's writes, as in Java
+        for (int length : new int[]{5, 1000}) {
+            var values = new int[length];
+            shift(values, values);
+            var expected = new int[length];
+            Arrays.setAll(expected, i -> i);
+            if (!Arrays.equals(values, expected)) throw new AssertionError("Aliased arrays: " + Arrays.toString(values));
+        }
     }
 
     private static final int NUMBER = 100;
@@ -24,4 +35,9 @@ public class Main {
     private int giveNumber(int i, int counter) {
         return i * counter;
     }
-}
\ No newline at end of file
+
+    @Nativize
+    static void shift(int[] from, int[] to) {
+        for (int i = 0; i + 1 < from.length; i++) to[i + 1] = from[i] + 1;
+    }
+}
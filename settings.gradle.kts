@@ -1,5 +1,6 @@
 rootProject.name = "jinix-plugin"
 include("TestModule")
+include("Benchmarks")
 
 pluginManagement {
     repositories {
@@ -0,0 +1,128 @@
+package org.jinix;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Bootstrap of methods nativized with {@code @Nativize(downcall = true)}. Their bytecode is replaced with an
+ * invokedynamic, which is linked once to a Foreign Function & Memory API downcall of the transpiled C function.
+ * <p>
+ * The plugin targets Java 21, where the API is still a preview, so it is accessed reflectively and needs Java 22+
+ */
+public final class Downcalls {
+    private static final String FOREIGN = "java.lang.foreign.";
+    /** The downcall can use {@code Linker.Option.critical}, which also allows passing heap arrays */
+    public static final int CRITICAL = 1;
+    /** The downcall may throw, e.g. for an array index out of bounds, which is read after it returns */
+    public static final int CHECKED = 2;
+    private static final String FAILURE_FUNCTION = "jinix_downcall_failure";
+
+    private Downcalls() {}
+
+    /**
+     * @param symbol C function in the loaded Jinix library
+     * @param flags {@link #CRITICAL} and {@link #CHECKED}
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String symbol, int flags) throws Throwable {
+        var linkerClass = Class.forName(FOREIGN + "Linker");
+        var segmentClass = Class.forName(FOREIGN + "MemorySegment");
+        var layoutClass = Class.forName(FOREIGN + "MemoryLayout");
+        var descriptorClass = Class.forName(FOREIGN + "FunctionDescriptor");
+        var optionClass = Class.forName(FOREIGN + "Linker$Option");
+        var symbolLookupClass = Class.forName(FOREIGN + "SymbolLookup");
+
+        // Libraries loaded by Jinix.load belong to the class loader of this class
+        var symbols = symbolLookupClass.getMethod("loaderLookup").invoke(null);
+        var find = symbolLookupClass.getMethod("find", String.class);
+        var address = ((Optional<?>) find.invoke(symbols, symbol))
+                .orElseThrow(() -> new UnsatisfiedLinkError("Downcall function " + symbol + " not found, was Jinix.load() called?"));
+
+        // Arrays are passed as a segment and length
+        List<Object> argumentLayouts = new ArrayList<>();
+        for (Class<?> parameter : type.parameterList()) {
+            if (parameter.isArray()) {
+                argumentLayouts.add(layout("ADDRESS"));
+                argumentLayouts.add(layout(int.class));
+            } else {
+                argumentLayouts.add(layout(parameter));
+            }
+        }
+
+        var layouts = argumentLayouts.toArray((Object[]) Array.newInstance(layoutClass, 0));
+        var descriptor = type.returnType() == void.class
+                ? descriptorClass.getMethod("ofVoid", layouts.getClass()).invoke(null, (Object) layouts)
+                : descriptorClass.getMethod("of", layoutClass, layouts.getClass()).invoke(null, layout(type.returnType()), layouts);
+
+        var options = (Object[]) Array.newInstance(optionClass, (flags & CRITICAL) != 0 ? 1 : 0);
+        if ((flags & CRITICAL) != 0) options[0] = optionClass.getMethod("critical", boolean.class).invoke(null, true);
+
+        var linker = linkerClass.getMethod("nativeLinker").invoke(null);
+        var downcallHandle = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass, options.getClass());
+        var downcall = (MethodHandle) downcallHandle.invoke(linker, address, descriptor, options);
+        if ((flags & CHECKED) != 0) {
+            // Reads the exception in the same thread, right after the downcall
+            var failureAddress = ((Optional<?>) find.invoke(symbols, FAILURE_FUNCTION)).orElseThrow();
+            var part = (Object[]) Array.newInstance(layoutClass, 1);
+            part[0] = layout(int.class);
+            var failureDescriptor = descriptorClass.getMethod("of", layoutClass, layouts.getClass()).invoke(null, layout(int.class), part);
+            var noOptions = Array.newInstance(optionClass, 0);
+            var failure = (MethodHandle) downcallHandle.invoke(linker, failureAddress, failureDescriptor, noOptions);
+            downcall = checkFailure(downcall, failure);
+        }
+
+        return new ConstantCallSite(adaptArrays(downcall, type, segmentClass));
+    }
+
+    /**
+     * Throws the exception of the downcall after it returns, as C++ code cannot throw Java exceptions without JNI
+     */
+    private static MethodHandle checkFailure(MethodHandle downcall, MethodHandle failure) throws ReflectiveOperationException {
+        var check = MethodHandles.lookup().findStatic(Downcalls.class, "throwFailure", MethodType.methodType(void.class, MethodHandle.class))
+                .bindTo(failure);
+        var returnType = downcall.type().returnType();
+        if (returnType == void.class) return MethodHandles.filterReturnValue(downcall, check);
+        return MethodHandles.filterReturnValue(downcall, MethodHandles.foldArguments(MethodHandles.identity(returnType), check));
+    }
+
+    // Kinds of JinixThrow
+    private static void throwFailure(MethodHandle failure) throws Throwable {
+        int kind = (int) failure.invokeExact(0);
+        switch (kind) {
+            case 0 -> {}
+            case 1 -> throw new NullPointerException("Array is null");
+            case 2 -> throw new ArrayIndexOutOfBoundsException("Index " + (int) failure.invokeExact(1) + " out of bounds for length "
+                    + (int) failure.invokeExact(2));
+            case 3 -> throw new NegativeArraySizeException(String.valueOf((int) failure.invokeExact(1)));
+            default -> throw new IllegalStateException("Unknown exception of downcall: " + kind);
+        }
+    }
+
+    /**
+     * Adapts (MemorySegment, int, ...) parameters of the downcall back to the arrays of the Java method
+     */
+    private static MethodHandle adaptArrays(MethodHandle downcall, MethodType type, Class<?> segmentClass) throws ReflectiveOperationException {
+        var handle = downcall;
+        var reorder = new int[downcall.type().parameterCount()];
+        for (int i = 0, position = 0; i < type.parameterCount(); i++, position++) {
+            var parameter = type.parameterType(i);
+            reorder[position] = i;
+            if (!parameter.isArray()) continue;
+
+            var toSegment = MethodHandles.publicLookup().findStatic(segmentClass, "ofArray", MethodType.methodType(segmentClass, parameter));
+            handle = MethodHandles.filterArguments(handle, position, toSegment, MethodHandles.arrayLength(parameter));
+            reorder[++position] = i;
+        }
+        return MethodHandles.permuteArguments(handle, type, reorder);
+    }
+
+    private static Object layout(Class<?> type) throws ReflectiveOperationException {
+        return layout("JAVA_" + type.getName().toUpperCase());
+    }
+
+    private static Object layout(String name) throws ReflectiveOperationException {
+        return Class.forName(FOREIGN + "ValueLayout").getField(name).get(null);
+    }
+}
@@ -1,10 +1,66 @@
 package org.jinix;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
 public class Jinix {
-    public static void load() {
-        System.load(System.getProperty("user.dir") + "/.jinix/libjinix.so");
-        init();
+    // Added to the class path by the plugin, next to classes of the project
+    public static final String LIBRARY = "jinix/libjinix.so";
+
+    // Volatile, otherwise the JIT may hoist the check out of a hot loop and the thread never sees the library loaded.
+    // A volatile read is a plain load on x86 and cheap next to the native call it guards
+    private static volatile boolean loaded;
+
+    /**
+     * Loads the native library. Nativized methods keep their Java bodies and run them until the library is loaded,
+     * so if it fails to load, a warning is logged and the application keeps running without native code
+     *
+     * @return whether nativized methods run natively
+     */
+    public static synchronized boolean load() {
+        if (loaded) return true;
+        try {
+            loadLibrary();
+            loaded = true;
+        } catch (UnsatisfiedLinkError | RuntimeException e) {
+            System.getLogger(Jinix.class.getName()).log(System.Logger.Level.WARNING,
+                    "Failed to load Jinix library, nativized methods run in Java", e);
+            return false;
+        }
+        JinixMetrics.register();
+        return true;
     }
 
-    private static native void init();
+    /**
+     * Checked by nativized methods on each call
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    private static void loadLibrary() {
+        var url = Jinix.class.getClassLoader().getResource(LIBRARY);
+        if (url == null) throw new UnsatisfiedLinkError(LIBRARY + " not found on the class path");
+
+        // JNI_OnLoad of the library registers nativized methods. JNI IDs are initialized lazily, by the first
+        // call of a nativized method which uses them
+        try {
+            if (url.getProtocol().equals("file")) {
+                System.load(Path.of(url.toURI()).toString());
+            } else {    // Packaged in a jar
+                var library = Files.createTempFile("jinix", ".so");
+                library.toFile().deleteOnExit();
+                try (InputStream stream = url.openStream()) {
+                    Files.copy(stream, library, StandardCopyOption.REPLACE_EXISTING);
+                }
+                System.load(library.toString());
+            }
+        } catch (IOException | URISyntaxException e) {
+            throw new RuntimeException("Failed to load " + url, e);
+        }
+    }
 }
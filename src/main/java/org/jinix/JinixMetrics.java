@@ -0,0 +1,140 @@
+package org.jinix;
+
+import jdk.jfr.*;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters of nativized methods, which libraries built with {@code jinix.metrics} keep per thread. Registered by
+ * {@link Jinix#load()} as an MXBean and as periodic {@value Statistics#NAME} JFR events, if the library has them
+ */
+public final class JinixMetrics implements JinixMetricsMXBean {
+    public static final String OBJECT_NAME = "org.jinix:type=Metrics";
+
+    private static String[] methods;
+
+    private JinixMetrics() {}
+
+    // Registered by an instrumented library
+    private static native String[] methods();
+    private static native long[] snapshot();
+
+    /**
+     * @return false if the library is not instrumented
+     */
+    static boolean register() {
+        try {
+            methods = methods();
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+
+        FlightRecorder.addPeriodicEvent(Statistics.class, JinixMetrics::emitStatistics);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new JinixMetrics(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {   // Counters can still be read and recorded
+            System.getLogger(JinixMetrics.class.getName()).log(System.Logger.Level.WARNING, "Failed to register " + OBJECT_NAME, e);
+        }
+        return true;
+    }
+
+    /**
+     * @return counters of each method, summed over all threads, or an empty list if the library is not instrumented
+     */
+    public static List<MethodMetrics> read() {
+        if (methods == null) return List.of();
+        var counters = snapshot();
+        List<MethodMetrics> result = new ArrayList<>(methods.length);
+        for (int i = 0; i < methods.length; i++) {
+            result.add(new MethodMetrics(methods[i], counters[i * 4], counters[i * 4 + 1], counters[i * 4 + 2], counters[i * 4 + 3]));
+        }
+        return result;
+    }
+
+    @Override
+    public List<MethodMetrics> getMethods() {
+        return read();
+    }
+
+    private static void emitStatistics() {
+        for (MethodMetrics method : read()) {
+            if (method.getCalls() == 0) continue;
+            var event = new Statistics();
+            event.method = method.getMethod();
+            event.calls = method.getCalls();
+            event.nativeTime = method.getNativeNanos();
+            event.upcalls = method.getUpcalls();
+            event.fieldAccesses = method.getFieldAccesses();
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts since the library was loaded. Native time includes methods called through upcalls
+     */
+    public static final class MethodMetrics {
+        private final String method;
+        private final long calls;
+        private final long nativeNanos;
+        private final long upcalls;
+        private final long fieldAccesses;
+
+        MethodMetrics(String method, long calls, long nativeNanos, long upcalls, long fieldAccesses) {
+            this.method = method;
+            this.calls = calls;
+            this.nativeNanos = nativeNanos;
+            this.upcalls = upcalls;
+            this.fieldAccesses = fieldAccesses;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getNativeNanos() {
+            return nativeNanos;
+        }
+
+        public long getUpcalls() {
+            return upcalls;
+        }
+
+        public long getFieldAccesses() {
+            return fieldAccesses;
+        }
+
+        @Override
+        public String toString() {
+            return "%s: %d calls, %d ns, %d upcalls, %d field accesses".formatted(method, calls, nativeNanos, upcalls, fieldAccesses);
+        }
+    }
+
+    @Name(Statistics.NAME)
+    @Label("Nativized Method Statistics")
+    @Category("Jinix")
+    @Period("1 s")
+    @StackTrace(false)
+    static class Statistics extends Event {
+        static final String NAME = "org.jinix.NativizedMethodStatistics";
+
+        @Label("Method")
+        String method;
+        @Label("Calls")
+        long calls;
+        @Label("Native Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nativeTime;
+        @Label("Upcalls")
+        long upcalls;
+        @Label("Field Accesses")
+        long fieldAccesses;
+    }
+}
@@ -0,0 +1,11 @@
+package org.jinix;
+
+import java.util.List;
+
+/**
+ * Counters of nativized methods in libraries built with {@code jinix.metrics}, registered as
+ * {@value JinixMetrics#OBJECT_NAME}
+ */
+public interface JinixMetricsMXBean {
+    List<JinixMetrics.MethodMetrics> getMethods();
+}
@@ -8,4 +8,40 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.CLASS)
 public @interface Nativize {
+    /**
+     * Calls the method through a Foreign Function & Memory API downcall instead of JNI, which avoids the JNI transition.
+     * Only static methods with primitive return type and primitive or primitive array parameters (except boolean[])
+     * are supported, and the method cannot access fields or call methods that are not transpiled.
+     * Requires Java 22+ at runtime, and {@code --enable-native-access} to avoid warnings about restricted methods
+     */
+    boolean downcall() default false;
+
+    /**
+     * Minimal length of the first array parameter for the native code to be called, shorter and null arrays are
+     * processed by the Java body, which the JIT runs faster when the transition to native code is not amortized.
+     * Of a {@link #batch()} method, it applies to the first array of the batch overload
+     */
+    int minLength() default 0;
+
+    /**
+     * Shares iterations of counted {@code for} loops between OpenMP threads, if they are provably independent:
+     * the loop only reads variables declared outside of it, except for reductions like {@code sum += x}, writes arrays
+     * only at the index of the loop variable and makes no method calls or JNI calls. Reductions of floating point
+     * values are summed in a different order than in Java. If iterations throw, for example for an index out of bounds,
+     * the other iterations still run, and the exception of the iteration Java would run first is thrown after the loop.
+     * The number of threads is given by the {@code jinix.parallelism} system property when the library is loaded,
+     * capped by the available processors
+     */
+    boolean parallel() default false;
+
+    /**
+     * Adds an overload of the method taking an array for each parameter and an array for the results,
+     * {@code int score(int a, int b)} gets {@code score(int[] a, int[] b, int[] results)}, which calls the native code
+     * once for all elements instead of crossing the JNI boundary for each of them. The overload is added to the class
+     * file, so it can be called from code compiled against nativized classes, or with method handles. Only methods with primitive
+     * parameters and return type are supported. As many elements are processed as the results array has, other
+     * arrays have to be at least as long. With {@link #parallel()}, elements are processed by multiple threads
+     * if the method does not use JNI
+     */
+    boolean batch() default false;
 }
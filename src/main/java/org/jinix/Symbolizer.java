@@ -0,0 +1,56 @@
+package org.jinix;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replaces symbols of native functions in profiles with the Java methods they were transpiled from, as frames of
+ * Java stack traces. Works on any text, such as collapsed stacks of async-profiler or perf, or {@code perf script} output:
+ * <pre>java -cp &lt;class path&gt; org.jinix.Symbolizer [symbols] &lt; profile.collapsed &gt; symbolized.collapsed</pre>
+ * Symbols are read from the class path, next to the library, unless a file is given. Lines within methods are
+ * resolved by perf and debuggers from the separate debug info of the library
+ */
+public final class Symbolizer {
+    public static final String SYMBOLS = "jinix/jinix.symbols";
+    // Functions of nativized methods and helpers, possibly followed by an annotation like _[n] of async-profiler
+    private static final Pattern SYMBOL = Pattern.compile("jinix_[A-Za-z0-9_]*?(?=_\\[|\\W|$)");
+
+    private final Map<String, String> frames;
+
+    private Symbolizer(Map<String, String> frames) {
+        this.frames = frames;
+    }
+
+    public static Symbolizer read(InputStream symbols) throws IOException {
+        Map<String, String> frames = new HashMap<>();
+        var reader = new BufferedReader(new InputStreamReader(symbols, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            var separator = line.indexOf('\t');
+            if (separator > 0) frames.put(line.substring(0, separator), line.substring(separator + 1));
+        }
+        return new Symbolizer(frames);
+    }
+
+    public String symbolize(String line) {
+        return SYMBOL.matcher(line).replaceAll(match -> Matcher.quoteReplacement(frames.getOrDefault(match.group(), match.group())));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Symbolizer symbolizer;
+        try (InputStream symbols = args.length > 0 ? new FileInputStream(args[0]) : Symbolizer.class.getClassLoader().getResourceAsStream(SYMBOLS)) {
+            if (symbols == null) throw new FileNotFoundException(SYMBOLS + " not found on the class path");
+            symbolizer = read(symbols);
+        }
+
+        var reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        var writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            writer.println(symbolizer.symbolize(line));
+        }
+        writer.flush();
+    }
+}
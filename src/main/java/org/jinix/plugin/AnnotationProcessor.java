@@ -29,7 +29,7 @@ public class AnnotationProcessor extends AbstractProcessor {
                     });
         }
 
-        methodModifier.writeReport(); // TODO inefficient, writing on every class
+        methodModifier.writeReports();
         return true;
     }
 
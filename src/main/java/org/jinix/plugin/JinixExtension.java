@@ -0,0 +1,137 @@
+package org.jinix.plugin;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.jinix.plugin.compiler.CompilerOptions;
+
+import java.util.List;
+
+/**
+ * The {@code jinix {}} block of projects with the plugin applied
+ */
+public abstract class JinixExtension {
+    public static final String RELEASE = "release";
+    public static final String DEBUG = "debug";
+    public static final String PROFILE_OFF = "off";
+    public static final String PROFILE_GENERATE = "generate";
+    public static final String PROFILE_USE = "use";
+
+    /**
+     * C++ compiler with gcc compatible flags. Defaults to gcc
+     */
+    public abstract Property<String> getCompiler();
+
+    /**
+     * "release" (default) or "debug", which adds debug info and defaults the optimization level to 0
+     */
+    public abstract Property<String> getVariant();
+
+    /**
+     * Value of -O. Defaults to 3 for release and 0 for debug
+     */
+    public abstract Property<String> getOptimizationLevel();
+
+    /**
+     * Value of -march, e.g. "native". The library then only runs on CPUs supporting the chosen architecture
+     */
+    public abstract Property<String> getMarch();
+
+    /**
+     * Value of -mtune
+     */
+    public abstract Property<String> getMtune();
+
+    /**
+     * Link time optimization
+     */
+    public abstract Property<Boolean> getLto();
+
+    /**
+     * Whether release libraries are built with debug info, which is moved to build/jinix/debug/libjinix.so.debug,
+     * so perf and debuggers can map native code to lines of Java sources. Defaults to true
+     */
+    public abstract Property<Boolean> getSeparateDebugInfo();
+
+    /**
+     * Flags appended to the compiler command
+     */
+    public abstract ListProperty<String> getExtraFlags();
+
+    /**
+     * Profile guided optimization phase: "off", "generate" for an instrumented library or "use".
+     * Defaults to the jinix.profile project property, or "use" if the profile directory has profiles
+     */
+    public abstract Property<String> getProfile();
+
+    /**
+     * Where profiles are collected and read from. Defaults to build/jinix/profile
+     */
+    public abstract DirectoryProperty getProfileDirectory();
+
+    /**
+     * Task running a representative workload with the instrumented library, e.g. "test" or "jmh".
+     * Required by the jinixProfile task
+     */
+    public abstract Property<String> getTrainingTask();
+
+    /**
+     * Whether compiled objects are cached, and reused by any build compiling the same code. Defaults to true
+     */
+    public abstract Property<Boolean> getCache();
+
+    /**
+     * Where compiled objects are cached. Defaults to ~/.jinix/cache
+     */
+    public abstract DirectoryProperty getCacheDirectory();
+
+    /**
+     * Size of the cache in megabytes, over which the least recently used objects are evicted. Defaults to 1024
+     */
+    public abstract Property<Integer> getCacheSize();
+
+    /**
+     * Fails the build if a method is estimated to be slower nativized
+     */
+    public abstract Property<Boolean> getFailOnUnprofitable();
+
+    /**
+     * Builds an instrumented library, which counts calls, native time, upcalls and field accesses of each nativized
+     * method. They are exported through the org.jinix:type=Metrics MXBean and JFR events. Defaults to the
+     * jinix.metrics project property, or false
+     */
+    public abstract Property<Boolean> getMetrics();
+
+    public JinixExtension() {
+        getCompiler().convention(CompilerOptions.DEFAULT.compiler());
+        getVariant().convention(RELEASE);
+        getOptimizationLevel().convention(getVariant().map(v -> isDebug(v) ? "0" : CompilerOptions.DEFAULT.optimizationLevel()));
+        getLto().convention(false);
+        getSeparateDebugInfo().convention(true);
+        getExtraFlags().convention(List.of());
+        getCache().convention(true);
+        getCacheSize().convention(1024);
+    }
+
+    CompilerOptions toCompilerOptions() {
+        return new CompilerOptions(getCompiler().get(), getOptimizationLevel().get(), getMarch().getOrNull(),
+                getMtune().getOrNull(), getLto().get(), isDebug(getVariant().get()), getSeparateDebugInfo().get(), getExtraFlags().get(),
+                profile(getProfile().get()));
+    }
+
+    private static CompilerOptions.Profile profile(String profile) {
+        return switch (profile) {
+            case PROFILE_OFF -> CompilerOptions.Profile.OFF;
+            case PROFILE_GENERATE -> CompilerOptions.Profile.GENERATE;
+            case PROFILE_USE -> CompilerOptions.Profile.USE;
+            default -> throw new IllegalArgumentException("Unknown profile " + profile + ", expected "
+                    + String.join(", ", PROFILE_OFF, PROFILE_GENERATE, PROFILE_USE));
+        };
+    }
+
+    private static boolean isDebug(String variant) {
+        if (!variant.equals(RELEASE) && !variant.equals(DEBUG))
+            throw new IllegalArgumentException("Unknown variant " + variant + ", expected " + RELEASE + " or " + DEBUG);
+        return variant.equals(DEBUG);
+    }
+}
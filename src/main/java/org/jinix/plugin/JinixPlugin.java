@@ -1,26 +1,32 @@
 package org.jinix.plugin;
 
-import com.github.javaparser.resolution.TypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginExtension;
+import org.gradle.api.tasks.GradleBuild;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.compile.JavaCompile;
 import org.jinix.NativizationException;
-import org.jinix.plugin.compiler.MethodNativizer;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
 
 public class JinixPlugin implements Plugin<Project> {
     private static final String GROUP = "org.jinix";
     private static final String NAME = "jinix-plugin";
     private static final String VERSION = "0.0.1"; // TODO load from build
+    private static final String FAIL_ON_UNPROFITABLE = "jinix.failOnUnprofitable";
+    private static final String METRICS = "jinix.metrics";
+    private static final String PROFILE = "jinix.profile";
+    private static final String PROFILE_TASK = "jinixProfile";
+    private static final String NATIVIZE_TASK = "nativizeClasses";
+    private static final String TRANSPILE_TASK = "transpileNative";
+    private static final String LINK_TASK = "linkNative";
+    private static final String TASK_GROUP = "jinix";
 
     @Override
     public void apply(Project target) {
@@ -30,54 +36,108 @@ public class JinixPlugin implements Plugin<Project> {
         target.getDependencies().add("implementation", dependencyNotation);
         target.getDependencies().add("annotationProcessor", dependencyNotation);
 
-        target.getTasks().matching(t -> t.getName().equals("classes")).all(task -> task.doLast(t -> {
-            var outputDir = target.getLayout().getBuildDirectory().file("classes/java/main").get().getAsFile();
-            //TODO skip if there are no changes
-//                var marker = new File(outputDir, ".jinix_native_transform_done");
-//                if (marker.exists()) return; // Already transformed
+        var extension = target.getExtensions().create("jinix", JinixExtension.class);
+        extension.getFailOnUnprofitable().convention(target.getProviders().gradleProperty(FAIL_ON_UNPROFITABLE)
+                .map(Boolean::parseBoolean).orElse(false));
+        extension.getMetrics().convention(target.getProviders().gradleProperty(METRICS).map(Boolean::parseBoolean).orElse(false));
+        extension.getCacheDirectory().convention(target.getLayout().getProjectDirectory()
+                .dir(System.getProperty("user.home") + "/.jinix/cache"));
+        extension.getProfileDirectory().convention(target.getLayout().getBuildDirectory().dir("jinix/profile"));
+        extension.getProfile().convention(target.getProviders().gradleProperty(PROFILE).orElse(target.provider(() ->
+                hasProfiles(extension.getProfileDirectory().get().getAsFile()) ? JinixExtension.PROFILE_USE : JinixExtension.PROFILE_OFF)));
+        registerProfileTask(target, extension);
+        target.getPlugins().withType(JavaPlugin.class, plugin -> registerTasks(target, extension));
+    }
 
-            target.fileTree(outputDir, spec -> spec.include("**/*.class")).forEach(classFile -> {
-                try {
-                    byte[] original = Files.readAllBytes(classFile.toPath());
-                    var reader = new ClassReader(original);
-                    var writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    /**
+     * Registers tasks nativizing the main source set, whose output then has nativized classes and the library
+     * instead of compiled classes
+     */
+    private void registerTasks(Project target, JinixExtension extension) {
+        var main = target.getExtensions().getByType(JavaPluginExtension.class).getSourceSets()
+                .getByName(SourceSet.MAIN_SOURCE_SET_NAME);
+        var classesDirectory = target.getTasks().named(main.getCompileJavaTaskName(), JavaCompile.class)
+                .flatMap(JavaCompile::getDestinationDirectory);
+        var buildDirectory = target.getLayout().getBuildDirectory();
 
-                    var transformer = new NativeMethodTransformer(writer);
-                    reader.accept(transformer, 0);
+        var nativize = target.getTasks().register(NATIVIZE_TASK, NativizeClasses.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Replaces bodies of nativized methods in compiled classes");
+            task.getClassesDirectory().set(classesDirectory);
+            task.getDestinationDirectory().set(buildDirectory.dir("jinix/classes"));
+        });
 
-                    Files.write(classFile.toPath(), writer.toByteArray());
-                } catch (IOException e) {
-                    throw new NativizationException("Failed to transform " + classFile, e);
-                }
-            });
+        var typeSolverService = target.getGradle().getSharedServices()
+                .registerIfAbsent(TypeSolverService.NAME, TypeSolverService.class, spec -> {});
+        var transpile = target.getTasks().register(TRANSPILE_TASK, TranspileNative.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Transpiles nativized methods to C++");
+            task.getClassesDirectory().set(classesDirectory);
+            task.getSourceDirectories().from(main.getJava().getSourceDirectories());
+            task.getClasspath().from(main.getCompileClasspath());
+            task.getFailOnUnprofitable().set(extension.getFailOnUnprofitable());
+            task.getMetrics().set(extension.getMetrics());
+            task.getTypeSolverService().set(typeSolverService);
+            task.usesService(typeSolverService);
+            task.getDestinationDirectory().set(buildDirectory.dir("jinix/src"));
+        });
 
-            var symbolSolver = setupTypeSolver(target);
-            new MethodNativizer(symbolSolver).nativizeReported();
+        var profiles = target.fileTree(extension.getProfileDirectory(), spec -> spec.include("**/*.gcda"));
+        var noCache = target.getObjects().directoryProperty();
+        var link = target.getTasks().register(LINK_TASK, LinkNative.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Compiles the native library");
+            task.getSourceDirectory().set(transpile.flatMap(TranspileNative::getDestinationDirectory));
+            task.getOptions().set(target.provider(extension::toCompilerOptions));
+            task.getCompilerVersion().set(extension.getCompiler().flatMap(compiler -> target.getProviders()
+                    .exec(spec -> spec.commandLine(compiler, "--version")).getStandardOutput().getAsText()));
+            task.getProfiles().from(extension.getProfile().map(profile ->
+                    profile.equals(JinixExtension.PROFILE_USE) ? profiles : List.of()));
+            task.getProfileDirectory().set(extension.getProfileDirectory());
+            task.getCacheDirectory().set(extension.getCache().flatMap(enabled -> enabled ? extension.getCacheDirectory() : noCache));
+            task.getCacheSize().set(extension.getCacheSize().map(megabytes -> megabytes * 1024L * 1024));
+            task.getWorkingDirectory().set(buildDirectory.dir("jinix/obj"));
+            task.getDestinationDirectory().set(buildDirectory.dir("jinix/lib"));
+            task.getDebugDirectory().set(buildDirectory.dir("jinix/debug"));
+        });
 
-//                try {
-//                    noinspection ResultOfMethodCallIgnored
-//                    marker.createNewFile();
-//                } catch (IOException ignored) {}
-        }));
+        ((ConfigurableFileCollection) main.getOutput().getClassesDirs())
+                .setFrom(nativize.flatMap(NativizeClasses::getDestinationDirectory));
+        main.getOutput().dir(Map.of("builtBy", link), link.flatMap(LinkNative::getDestinationDirectory));
+        target.getTasks().named(main.getClassesTaskName(), task -> task.dependsOn(nativize));
     }
 
-    private TypeSolver setupTypeSolver(Project target) {
-        var solver = new CombinedTypeSolver();
-        solver.add(new ReflectionTypeSolver());   // Java's libraries
-        solver.add(new JavaParserTypeSolver(target.file("src/main/java")));
+    /**
+     * Runs the training task in a nested build with an instrumented library, then nativizes again with the
+     * collected profile
+     */
+    private void registerProfileTask(Project target, JinixExtension extension) {
+        target.getTasks().register(PROFILE_TASK, GradleBuild.class, task -> {
+            task.setGroup(TASK_GROUP);
+            task.setDescription("Collects a profile of the training task and rebuilds the native library with it");
+            task.setDir(target.getRootDir());
+            var trainingTask = extension.getTrainingTask();
+            var profileDirectory = extension.getProfileDirectory();
+            var projectPath = target.getPath().equals(":") ? "" : target.getPath();
+            task.doFirst(t -> {
+                var training = trainingTask.getOrNull();
+                if (training == null)
+                    throw new NativizationException("Set jinix.trainingTask to the task to collect the profile with");
 
-        // Adding dependencies to solver
-        target.getExtensions().getByType(JavaPluginExtension.class)
-                .getSourceSets().forEach(sourceSet -> {
-                    try {
-                        for (File f : sourceSet.getCompileClasspath().getFiles()) {
-                            solver.add(new JarTypeSolver(f));
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+                try {
+                    Utils.cleanDirectory(profileDirectory.get().getAsFile().toPath());  // Counts of previous runs would be merged
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                task.setTasks(List.of(projectPath + ":" + training));
+                task.getStartParameter().getProjectProperties().put(PROFILE, JinixExtension.PROFILE_GENERATE);
+            });
+            task.finalizedBy(JavaPlugin.CLASSES_TASK_NAME);
+        });
+    }
 
-        return solver;
+    private static boolean hasProfiles(File directory) {
+        var profiles = directory.listFiles((dir, name) -> name.endsWith(".gcda"));
+        return profiles != null && profiles.length > 0;
     }
-}
\ No newline at end of file
+}
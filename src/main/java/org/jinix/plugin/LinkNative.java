@@ -0,0 +1,175 @@
+package org.jinix.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkerExecutor;
+import org.jinix.Jinix;
+import org.jinix.Symbolizer;
+import org.jinix.plugin.compiler.CompilerOptions;
+import org.jinix.plugin.compiler.MethodNativizer;
+import org.jinix.plugin.compiler.NativeCompiler;
+import org.jinix.plugin.compiler.ObjectCache;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Compiles the transpiled sources into the native library, which is added to the class path as {@link Jinix#LIBRARY}
+ * together with its {@link Symbolizer#SYMBOLS}
+ */
+@CacheableTask
+public abstract class LinkNative extends DefaultTask {
+    @Internal
+    public abstract DirectoryProperty getSourceDirectory();
+
+    @InputFiles
+    @SkipWhenEmpty
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    protected FileTree getSources() {
+        return getSourceDirectory().getAsFileTree().matching(spec -> spec.include("*.h", "*.cpp", MethodNativizer.SYMBOLS_NAME));
+    }
+
+    @Input
+    public abstract Property<CompilerOptions> getOptions();
+
+    /**
+     * Output of {@code --version} of the compiler, as objects differ between compiler versions
+     */
+    @Input
+    public abstract Property<String> getCompilerVersion();
+
+    /**
+     * Profiles the library is optimized with, if any
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getProfiles();
+
+    /**
+     * Where profiles are written or read. Not an input, so outputs do not depend on the location of the project,
+     * except for instrumented libraries, which write profiles to its absolute path and so are not cached
+     */
+    @Internal
+    public abstract DirectoryProperty getProfileDirectory();
+
+    /**
+     * Cache of objects shared with other builds, which only saves compilation and so is not an input
+     */
+    @Internal
+    public abstract DirectoryProperty getCacheDirectory();
+
+    /**
+     * Size of the cache in bytes
+     */
+    @Internal
+    public abstract Property<Long> getCacheSize();
+
+    /**
+     * Where sources are compiled, which also keeps compiler logs
+     */
+    @LocalState
+    public abstract DirectoryProperty getWorkingDirectory();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    /**
+     * Where the separate debug info of the library is written, which is not packaged with it
+     */
+    @OutputDirectory
+    public abstract DirectoryProperty getDebugDirectory();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    public LinkNative() {
+        getOutputs().doNotCacheIf("Instrumented library writes profiles to the absolute profile directory",
+                task -> getOptions().get().profile() == CompilerOptions.Profile.GENERATE);
+    }
+
+    @TaskAction
+    public void link() {
+        getWorkerExecutor().noIsolation().submit(Action.class, parameters -> {
+            parameters.getSourceDirectory().set(getSourceDirectory());
+            parameters.getOptions().set(getOptions());
+            parameters.getProfileDirectory().set(getProfileDirectory());
+            parameters.getCacheDirectory().set(getCacheDirectory());
+            parameters.getCacheSize().set(getCacheSize());
+            parameters.getCompilerVersion().set(getCompilerVersion());
+            parameters.getWorkingDirectory().set(getWorkingDirectory());
+            parameters.getDestinationDirectory().set(getDestinationDirectory());
+            parameters.getDebugDirectory().set(getDebugDirectory());
+        });
+    }
+
+    public interface Parameters extends WorkParameters {
+        DirectoryProperty getSourceDirectory();
+        Property<CompilerOptions> getOptions();
+        DirectoryProperty getProfileDirectory();
+        DirectoryProperty getCacheDirectory();
+        Property<Long> getCacheSize();
+        Property<String> getCompilerVersion();
+        DirectoryProperty getWorkingDirectory();
+        DirectoryProperty getDestinationDirectory();
+        DirectoryProperty getDebugDirectory();
+    }
+
+    public abstract static class Action implements WorkAction<Parameters> {
+        @Override
+        public void execute() {
+            var parameters = getParameters();
+            var sources = parameters.getSourceDirectory().get().getAsFile().toPath();
+            var working = parameters.getWorkingDirectory().get().getAsFile().toPath();
+            var destination = parameters.getDestinationDirectory().get().getAsFile().toPath();
+            var debug = parameters.getDebugDirectory().get().getAsFile().toPath();
+            var cache = parameters.getCacheDirectory().isPresent()
+                    ? new ObjectCache(parameters.getCacheDirectory().get().getAsFile(), parameters.getCacheSize().get(),
+                            parameters.getCompilerVersion().get())
+                    : null;
+
+            try {
+                // Compiled in a copy, so outputs of the transpilation are never modified
+                Utils.cleanDirectory(working);
+                Files.createDirectories(working);
+                List<Path> files;
+                try (var stream = Files.list(sources)) {
+                    files = stream.filter(Files::isRegularFile).toList();
+                }
+                for (Path file : files) {
+                    Files.copy(file, working.resolve(file.getFileName()));
+                }
+
+                var library = new NativeCompiler(parameters.getOptions().get(),
+                        parameters.getProfileDirectory().get().getAsFile(), cache).compileAndLink(working.toFile());
+                if (cache != null) Logging.getLogger(LinkNative.class).lifecycle("Jinix: object cache: {}", cache.finish());
+
+                Utils.cleanDirectory(destination);
+                var target = destination.resolve(Jinix.LIBRARY);
+                Files.createDirectories(target.getParent());
+                Files.copy(library.toPath(), target);
+                var symbols = sources.resolve(MethodNativizer.SYMBOLS_NAME);
+                if (Files.exists(symbols)) Files.copy(symbols, destination.resolve(Symbolizer.SYMBOLS));
+
+                Utils.cleanDirectory(debug);
+                var debugInfo = working.resolve(NativeCompiler.DEBUG_INFO_NAME);
+                if (Files.exists(debugInfo)) {
+                    Files.createDirectories(debug);
+                    Files.copy(debugInfo, debug.resolve(NativeCompiler.DEBUG_INFO_NAME));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -1,55 +1,190 @@
 package org.jinix.plugin;
 
+import org.jinix.NativizationException;
+
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
-public class MethodSourceReport implements Serializable {
-    @Serial
-    private static final long serialVersionUID = 81262395629L;
-    //TODO two compilations at the same time will result in error
-    static final File REPORT_FILE = new File(System.getProperty("java.io.tmpdir"), ".jinix-report");
+/**
+ * Methods to nativize by class, with the source file of each class and where the methods are in it. Sources are not
+ * included, they are read from source directories and checked against their hash.
+ * <p>
+ * The annotation processor writes a fragment for each top level class, which are merged when read.
+ * Format: magic, version, number of classes, a table of class names and offsets of their entries, then entries with
+ * the class file, the source path, its SHA-256 and the name, start and end offsets and line of each method.
+ * Strings are UTF-8 prefixed by their length. Files are mapped, and entries are only decoded when their class is looked up
+ */
+public class MethodSourceReport {
+    // In the class output, so fragments are cached and cleaned together with classes of the project
+    public static final String DIRECTORY = "META-INF/jinix";
+    public static final String EXTENSION = ".report";
+    private static final int MAGIC = 0x4A4E5852;   // "JNXR"
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32;
 
-    private final Map<String, ClassData> classData = new HashMap<>();
+    private final Map<String, ClassData> classData = new ConcurrentHashMap<>();
+    // Of read fragments, positioned at the entry of each class
+    private final Map<String, ByteBuffer> entries = new LinkedHashMap<>();
 
-    public static MethodSourceReport retrieveReport(){
-        if (!REPORT_FILE.exists())
-            throw new IllegalStateException("No report to retrieve");
+    /**
+     * Merges report fragments
+     */
+    public static MethodSourceReport read(Collection<File> fragments){
+        var report = new MethodSourceReport();
+        for (File fragment : fragments) {
+            try (var channel = FileChannel.open(fragment.toPath())) {
+                report.addEntries(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return report;
+    }
 
-        try (var stream = new ObjectInputStream(new FileInputStream(REPORT_FILE))){
-            return (MethodSourceReport) stream.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException(e);
+    private void addEntries(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) throw new IllegalStateException("Not a Jinix report");
+        if (buffer.getInt() != VERSION) throw new IllegalStateException("Report of an incompatible Jinix version");
+        int classes = buffer.getInt();
+        Map<String, Integer> offsets = new LinkedHashMap<>();
+        for (int i = 0; i < classes; i++) {
+            offsets.put(getString(buffer), buffer.getInt());
         }
+        var entriesBuffer = buffer.slice();
+        offsets.forEach((name, offset) -> entries.put(name, entriesBuffer.duplicate().position(offset)));
     }
 
-    public void addMethod(String className, String methodName){
-        this.classData.get(className).nativizeMethods.add(methodName);
+    public void write(OutputStream output) throws IOException {
+        var entryBytes = new ByteArrayOutputStream();
+        var entryStream = new DataOutputStream(entryBytes);
+        var stream = new DataOutputStream(new BufferedOutputStream(output));
+        stream.writeInt(MAGIC);
+        stream.writeInt(VERSION);
+        stream.writeInt(classData.size());
+        for (ClassData data : new TreeMap<>(classData).values()) {
+            putString(stream, data.name);
+            stream.writeInt(entryStream.size());
+
+            putString(entryStream, data.classFile);
+            putString(entryStream, data.sourcePath);
+            entryStream.write(HexFormat.of().parseHex(data.sourceHash));
+            entryStream.writeInt(data.methods.size());
+            for (MethodData method : data.methods) {
+                putString(entryStream, method.name());
+                entryStream.writeInt(method.begin());
+                entryStream.writeInt(method.end());
+                entryStream.writeInt(method.line());
+            }
+        }
+        entryBytes.writeTo(stream);
+        stream.flush();
     }
 
-    public void addClassIfAbsent(String name, Supplier<String> sourceSupplier) {
-        this.classData.computeIfAbsent(name, k -> new ClassData(k, sourceSupplier.get()));
+    public void addMethod(String className, MethodData method){
+        this.classData.get(className).methods.add(method);
+    }
+
+    public void addClassIfAbsent(String name, Supplier<ClassData> dataSupplier) {
+        this.classData.computeIfAbsent(name, k -> dataSupplier.get());
     }
 
     public boolean isMethodReported(String className, String name) {
-        return classData.containsKey(className) && classData.get(className).nativizeMethods.contains(name);
+        var data = getClassData(className);
+        return data != null && data.methods.stream().anyMatch(m -> m.name().equals(name));
+    }
+
+    public Set<String> getClassNames() {
+        return entries.isEmpty() ? classData.keySet() : entries.keySet();
+    }
+
+    public ClassData getClassData(String className) {
+        var entry = entries.get(className);
+        if (entry == null) return classData.get(className);
+        return classData.computeIfAbsent(className, name -> decode(name, entry.duplicate()));
+    }
+
+    private static ClassData decode(String name, ByteBuffer buffer) {
+        var classFile = getString(buffer);
+        var sourcePath = getString(buffer);
+        var hash = new byte[HASH_LENGTH];
+        buffer.get(hash);
+
+        var data = new ClassData(name, classFile, sourcePath, HexFormat.of().formatHex(hash));
+        int methods = buffer.getInt();
+        for (int i = 0; i < methods; i++) {
+            data.methods.add(new MethodData(getString(buffer), buffer.getInt(), buffer.getInt(), buffer.getInt()));
+        }
+        return data;
     }
 
-    public Map<String, ClassData> getClassData() {
-        return classData;
+    private static void putString(DataOutputStream stream, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
     }
 
-    public static class ClassData implements Serializable {
+    private static String getString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static String hash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param begin offset of the first character of the method, including its annotations
+     * @param end offset after the last character of the method
+     * @param line of the first character
+     */
+    public record MethodData(String name, int begin, int end, int line) {}
+
+    public static class ClassData {
         public final String name;
-        public final String source;
-        public final List<String> nativizeMethods = new ArrayList<>();
+        // Relative to the class output, which is rewritten by the plugin
+        public final String classFile;
+        // Relative to a source directory
+        public final String sourcePath;
+        public final String sourceHash;
+        public final List<MethodData> methods = new ArrayList<>();
 
-        public ClassData(String name, String source) {
+        public ClassData(String name, String classFile, String sourcePath, String sourceHash) {
             this.name = name;
-            this.source = source;
+            this.classFile = classFile;
+            this.sourcePath = sourcePath;
+            this.sourceHash = sourceHash;
+        }
+
+        /**
+         * Reads the source the class was compiled from
+         */
+        public String readSource(Collection<File> sourceDirectories) {
+            for (File directory : sourceDirectories) {
+                var file = directory.toPath().resolve(sourcePath);
+                if (!Files.isRegularFile(file)) continue;
+
+                try {
+                    var content = Files.readAllBytes(file);
+                    if (!hash(content).equals(sourceHash))
+                        throw new NativizationException("Source of " + name + " changed since it was compiled: " + file);
+                    return new String(content, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            throw new NativizationException("Source of " + name + " not found in source directories: " + sourcePath);
         }
     }
 }
@@ -2,39 +2,102 @@ package org.jinix.plugin;
 
 import com.sun.source.util.Trees;
 
+import javax.annotation.processing.Filer;
 import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
-import java.io.FileOutputStream;
+import javax.lang.model.util.Elements;
+import javax.tools.StandardLocation;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Writes a report fragment for each top level class with nativized methods, originating only from that class, so
+ * Gradle can compile incrementally and remove fragments of recompiled classes
+ */
 public class MethodSourceReporter {
     private final Trees trees;
-    private final MethodSourceReport report = new MethodSourceReport();
+    private final Filer filer;
+    private final Elements elements;
+    // Of the current round, by top level class
+    private final Map<TypeElement, MethodSourceReport> reports = new LinkedHashMap<>();
 
     public MethodSourceReporter(ProcessingEnvironment environment) {
-        this.trees = Trees.instance(environment);
+        this.trees = Trees.instance(javacEnvironment(environment));
+        this.filer = environment.getFiler();
+        this.elements = environment.getElementUtils();
     }
 
     // TODO doesn't allow method overload, make it happen
     public void registerSource(TypeElement classElement, ExecutableElement method) {
         var className = classElement.getQualifiedName().toString();
+        var compilationUnit = trees.getPath(classElement).getCompilationUnit();
+        var report = reports.computeIfAbsent(topLevel(classElement), k -> new MethodSourceReport());
         report.addClassIfAbsent(className, () -> {
-            try {
-                return trees.getPath(classElement).getCompilationUnit().getSourceFile().getCharContent(true).toString();
+            var sourceFile = compilationUnit.getSourceFile();
+            try (var stream = sourceFile.openInputStream()) {
+                var packagePath = elements.getPackageOf(classElement).getQualifiedName().toString().replace('.', '/');
+                var fileName = Path.of(sourceFile.toUri()).getFileName().toString();
+                // Class files with nativized methods are the only ones rewritten by the plugin
+                var classFile = elements.getBinaryName(classElement).toString().replace('.', '/') + ".class";
+                return new MethodSourceReport.ClassData(className, classFile, packagePath.isEmpty() ? fileName : packagePath + "/" + fileName,
+                        MethodSourceReport.hash(stream.readAllBytes()));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         });
-        report.addMethod(className, method.getSimpleName().toString());
+
+        var positions = trees.getSourcePositions();
+        var tree = trees.getTree(method);
+        var begin = positions.getStartPosition(compilationUnit, tree);
+        report.addMethod(className, new MethodSourceReport.MethodData(method.getSimpleName().toString(), (int) begin,
+                (int) positions.getEndPosition(compilationUnit, tree), (int) compilationUnit.getLineMap().getLineNumber(begin)));
+    }
+
+    /**
+     * Writes fragments of classes registered in this round, as a resource can only be created once
+     */
+    public void writeReports() {
+        reports.forEach((topLevel, report) -> {
+            var path = MethodSourceReport.DIRECTORY + "/" + elements.getBinaryName(topLevel) + MethodSourceReport.EXTENSION;
+            try (var stream = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path, topLevel).openOutputStream()) {
+                report.write(stream);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reports.clear();
     }
 
-    public void writeReport() {
-        try (var stream = new ObjectOutputStream(new FileOutputStream(MethodSourceReport.REPORT_FILE))){
-            stream.writeObject(report);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Gradle wraps the environment of incremental processors, while trees are only available from the one of javac.
+     * The filer of the wrapper is still used, as it records originating elements
+     */
+    private static ProcessingEnvironment javacEnvironment(ProcessingEnvironment environment) {
+        try {
+            Trees.instance(environment);
+            return environment;
+        } catch (IllegalArgumentException e) {
+            for (Class<?> type = environment.getClass(); type != null; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (!ProcessingEnvironment.class.isAssignableFrom(field.getType())) continue;
+                    try {
+                        field.setAccessible(true);
+                        return javacEnvironment((ProcessingEnvironment) field.get(environment));
+                    } catch (ReflectiveOperationException | RuntimeException ignored) {}
+                }
+            }
+            throw e;
         }
     }
+
+    private static TypeElement topLevel(TypeElement classElement) {
+        Element element = classElement;
+        while (element.getEnclosingElement() instanceof TypeElement enclosing) element = enclosing;
+        return (TypeElement) element;
+    }
 }
@@ -1,63 +1,342 @@
 package org.jinix.plugin;
 
+import org.jinix.Downcalls;
+import org.jinix.Jinix;
 import org.jinix.NativizationException;
 import org.jinix.Nativize;
-import org.objectweb.asm.AnnotationVisitor;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Type;
+import org.jinix.plugin.compiler.HeaderGenerator;
+import org.objectweb.asm.*;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
 
 import static org.objectweb.asm.Opcodes.*;
 
+/**
+ * Makes nativized methods dispatchers, which call the native code if the library is loaded, or the Java body otherwise.
+ * The Java body is kept in a private method with {@link #JAVA_SUFFIX}, and native code is bound to a private method
+ * with {@link #NATIVE_SUFFIX}. Batch overloads of methods are added in the same way, see {@link #batchDescriptor}
+ */
 public class NativeMethodTransformer extends ClassVisitor {
-    private final MethodSourceReport report = MethodSourceReport.retrieveReport();
+    public static final String JAVA_SUFFIX = "$java";
+    public static final String NATIVE_SUFFIX = "$native";
+
+    private final MethodSourceReport report;
+    // Attributes of @Nativize by method name and descriptor, as they are needed before the method is visited
+    private final Map<String, Options> nativized = new HashMap<>();
+    private final Set<String> methods = new HashSet<>();
     private String className;
+    private boolean isInterface;
+    private boolean hasFrames;
+
+    private record Options(boolean downcall, int minLength, boolean batch) {}
 
-    public NativeMethodTransformer(ClassVisitor cv) {
+    public NativeMethodTransformer(ClassVisitor cv, MethodSourceReport report, ClassReader reader) {
         super(ASM9, cv);
+        this.report = report;
+        reader.accept(new ClassVisitor(ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                methods.add(name + desc);
+                return new MethodVisitor(api) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                        if (!descriptor.equals(Type.getDescriptor(Nativize.class))) return null;
+                        return new AnnotationVisitor(api) {
+                            private boolean downcall;
+                            private int minLength;
+                            private boolean batch;
+
+                            @Override
+                            public void visit(String name, Object value) {
+                                if (name.equals("downcall")) downcall = (Boolean) value;
+                                if (name.equals("minLength")) minLength = (Integer) value;
+                                if (name.equals("batch")) batch = (Boolean) value;
+                            }
+
+                            @Override
+                            public void visitEnd() {
+                                nativized.put(name + desc, new Options(downcall, minLength, batch));
+                            }
+                        };
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
     }
 
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.className = name.replace("/", ".");
+        this.isInterface = (access & ACC_INTERFACE) != 0;
+        this.hasFrames = (version & 0xFFFF) >= V1_6;
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        if (!report.isMethodReported(className, name)){
+        var options = nativized.get(name + desc);
+        if (options == null || !report.isMethodReported(className, name)){
             return super.visitMethod(access, name, desc, signature, exceptions);
         }
 
-        return new MethodVisitor(api, null) {
-            private boolean shouldMakeNative = false;
+        if ((access & ACC_ABSTRACT) != 0) {
+            throw new NativizationException("Unable to nativize method '" + name + "': method is abstract");
+        } else if ((access & ACC_SYNCHRONIZED) != 0) {
+            throw new NativizationException("Unable to nativize method '" + name + "': method is synchronized");
+        }
+        var type = Type.getMethodType(desc);
+        // The batch overload has arrays, the scalar method is always dispatched by whether the library is loaded
+        var minLength = options.batch() ? 0 : options.minLength();
+        if (minLength > 0 && Arrays.stream(type.getArgumentTypes()).noneMatch(t -> t.getSort() == Type.ARRAY))
+            throw new NativizationException("Unable to nativize method '" + name + "' with minLength: method has no array parameter");
+        if (options.batch()) checkBatch(name, type);
+
+        // The dispatcher keeps the annotations of the method, and the private copy its body
+        var dispatcher = cv.visitMethod(access, name, desc, signature, exceptions);
+        var privateAccess = ACC_PRIVATE | ACC_SYNTHETIC | (access & (ACC_STATIC | ACC_VARARGS | ACC_STRICT));
+        var java = cv.visitMethod(privateAccess, name + JAVA_SUFFIX, desc, signature, exceptions);
+
+        return new MethodVisitor(api, java) {
+            private boolean hasLoops = false;
+            private boolean mayThrow = false;   // Arrays and calls, which the transpiled code checks
+            private final Set<Label> visitedLabels = new HashSet<>();
 
             @Override
             public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
-                if (descriptor.equals(Type.getDescriptor(Nativize.class))) {
-                    shouldMakeNative = true;
-                }
-                return super.visitAnnotation(descriptor, visible);
+                if (descriptor.equals(Type.getDescriptor(Nativize.class))) return null;
+                return dispatcher.visitAnnotation(descriptor, visible);
+            }
+
+            @Override
+            public void visitAnnotableParameterCount(int parameterCount, boolean visible) {
+                dispatcher.visitAnnotableParameterCount(parameterCount, visible);
+            }
+
+            @Override
+            public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+                return dispatcher.visitParameterAnnotation(parameter, descriptor, visible);
+            }
+
+            @Override
+            public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String descriptor, boolean visible) {
+                return dispatcher.visitTypeAnnotation(typeRef, typePath, descriptor, visible);
+            }
+
+            @Override
+            public void visitParameter(String name, int access) {
+                dispatcher.visitParameter(name, access);
+                super.visitParameter(name, access);
+            }
+
+            @Override
+            public void visitLabel(Label label) {
+                visitedLabels.add(label);
+                super.visitLabel(label);
+            }
+
+            @Override
+            public void visitJumpInsn(int opcode, Label label) {
+                hasLoops |= visitedLabels.contains(label);  // Backward jump
+                super.visitJumpInsn(opcode, label);
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+                mayThrow |= opcode >= IALOAD && opcode <= SALOAD || opcode >= IASTORE && opcode <= SASTORE || opcode == ARRAYLENGTH;
+                super.visitInsn(opcode);
+            }
+
+            @Override
+            public void visitIntInsn(int opcode, int operand) {
+                mayThrow |= opcode == NEWARRAY;
+                super.visitIntInsn(opcode, operand);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                mayThrow = true;
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
             }
 
             @Override
             public void visitEnd() {
-                if (shouldMakeNative) {
-                    if ((access & ACC_ABSTRACT) != 0) {
-                        throw new NativizationException("Unable to nativize method '" + name + "': method is abstract");
-                    } else if ((access & ACC_SYNCHRONIZED) != 0) {
-                        throw new NativizationException("Unable to nativize method '" + name + "': method is synchronized");
-                    }
+                super.visitEnd();
+                visitDispatcher(dispatcher, access, name, desc, minLength);
 
-                    // Remove method body, set native flag
-                    int newAccess = access | ACC_NATIVE;
-                    MethodVisitor mv = cv.visitMethod(newAccess, name, desc, signature, exceptions);
-                    mv.visitEnd();
+                var nativeAccess = privateAccess & ~ACC_VARARGS;
+                if (options.downcall()) {
+                    visitDowncall(nativeAccess, name, desc, signature, exceptions, hasLoops, mayThrow);
                 } else {
-                    MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
-//                    NativeMethodTransformer.super.visitMethod(access, name, desc, signature, exceptions);
+                    cv.visitMethod(nativeAccess | ACC_NATIVE, name + NATIVE_SUFFIX, desc, signature, exceptions).visitEnd();
                 }
+                if (options.batch()) visitBatch(access, name, desc, options.minLength());
             }
         };
     }
+
+    /**
+     * Descriptor of the batch overload of a method, with an array for each parameter and an array for the results
+     */
+    public static String batchDescriptor(String desc) {
+        var type = Type.getMethodType(desc);
+        var arguments = new ArrayList<Type>();
+        for (Type argument : type.getArgumentTypes()) arguments.add(Type.getType("[" + argument.getDescriptor()));
+        arguments.add(Type.getType("[" + type.getReturnType().getDescriptor()));
+        return Type.getMethodDescriptor(Type.VOID_TYPE, arguments.toArray(Type[]::new));
+    }
+
+    private void checkBatch(String name, Type type) {
+        if (type.getReturnType().getSort() == Type.VOID || type.getReturnType().getSort() > Type.DOUBLE
+                || !Arrays.stream(type.getArgumentTypes()).allMatch(t -> t.getSort() <= Type.DOUBLE))
+            throw new NativizationException("Unable to nativize method '" + name + "' with batch: only primitive parameters and return type are supported");
+        if (methods.contains(name + batchDescriptor(type.getDescriptor())))
+            throw new NativizationException("Unable to nativize method '" + name + "' with batch: class already declares its batch overload");
+    }
+
+    /**
+     * Adds the batch overload as a dispatcher, its native method, and a Java body which calls the Java body
+     * of the method for each element
+     */
+    private void visitBatch(int access, String name, String desc, int minLength) {
+        var batchDesc = batchDescriptor(desc);
+        var publicAccess = access & (ACC_PUBLIC | ACC_PROTECTED | ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_STRICT);
+        visitDispatcher(cv.visitMethod(publicAccess, name, batchDesc, null, null), access, name, batchDesc, minLength);
+
+        var privateAccess = ACC_PRIVATE | ACC_SYNTHETIC | (access & (ACC_STATIC | ACC_STRICT));
+        cv.visitMethod(privateAccess | ACC_NATIVE, name + NATIVE_SUFFIX, batchDesc, null, null).visitEnd();
+
+        var type = Type.getMethodType(desc);
+        boolean isStatic = (access & ACC_STATIC) != 0;
+        var mv = cv.visitMethod(privateAccess, name + JAVA_SUFFIX, batchDesc, null, null);
+        mv.visitCode();
+
+        int results = isStatic ? type.getArgumentTypes().length : type.getArgumentTypes().length + 1;
+        int index = results + 1;
+        var loop = new Label();
+        var end = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, index);
+        mv.visitLabel(loop);
+        if (hasFrames) mv.visitFrame(F_APPEND, 1, new Object[]{INTEGER}, 0, null);
+        mv.visitVarInsn(ILOAD, index);
+        mv.visitVarInsn(ALOAD, results);
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitJumpInsn(IF_ICMPGE, end);
+
+        mv.visitVarInsn(ALOAD, results);
+        mv.visitVarInsn(ILOAD, index);
+        int stack = 2;
+        if (!isStatic) {
+            mv.visitVarInsn(ALOAD, 0);
+            stack++;
+        }
+        int local = isStatic ? 0 : 1;
+        for (Type argument : type.getArgumentTypes()) {
+            mv.visitVarInsn(ALOAD, local++);
+            mv.visitVarInsn(ILOAD, index);
+            mv.visitInsn(argument.getOpcode(IALOAD));
+            stack += argument.getSize();
+        }
+        mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, className.replace('.', '/'), name + JAVA_SUFFIX, desc, isInterface);
+        mv.visitInsn(type.getReturnType().getOpcode(IASTORE));
+        mv.visitIincInsn(index, 1);
+        mv.visitJumpInsn(GOTO, loop);
+
+        mv.visitLabel(end);
+        if (hasFrames) mv.visitFrame(F_SAME, 0, null, 0, null);
+        mv.visitInsn(RETURN);
+        // Results array, index and this, then loaded arguments with the array and index of the next one
+        mv.visitMaxs(Math.max(stack + 1, 4), index + 1);
+        mv.visitEnd();
+    }
+
+    /**
+     * Calls the native method if the library is loaded and the first array is at least minLength long, or the Java body
+     */
+    private void visitDispatcher(MethodVisitor mv, int access, String name, String desc, int minLength) {
+        var type = Type.getMethodType(desc);
+        boolean isStatic = (access & ACC_STATIC) != 0;
+        mv.visitCode();
+
+        var java = new Label();
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Jinix.class), "isLoaded", "()Z", false);
+        mv.visitJumpInsn(IFEQ, java);
+        if (minLength > 0) {
+            int local = isStatic ? 0 : 1;
+            for (Type argument : type.getArgumentTypes()) {
+                if (argument.getSort() == Type.ARRAY) break;
+                local += argument.getSize();
+            }
+            mv.visitVarInsn(ALOAD, local);
+            mv.visitJumpInsn(IFNULL, java);
+            mv.visitVarInsn(ALOAD, local);
+            mv.visitInsn(ARRAYLENGTH);
+            mv.visitLdcInsn(minLength);
+            mv.visitJumpInsn(IF_ICMPLT, java);
+        }
+        int locals = visitCall(mv, isStatic, name + NATIVE_SUFFIX, type);
+
+        mv.visitLabel(java);
+        if (hasFrames) mv.visitFrame(F_SAME, 0, null, 0, null);
+        visitCall(mv, isStatic, name + JAVA_SUFFIX, type);
+        mv.visitMaxs(Math.max(Math.max(locals, type.getReturnType().getSize()), 2), locals);
+        mv.visitEnd();
+    }
+
+    // Returns the size of the arguments
+    private int visitCall(MethodVisitor mv, boolean isStatic, String name, Type type) {
+        int local = 0;
+        if (!isStatic) mv.visitVarInsn(ALOAD, local++);
+        for (Type argument : type.getArgumentTypes()) {
+            mv.visitVarInsn(argument.getOpcode(ILOAD), local);
+            local += argument.getSize();
+        }
+        mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, className.replace('.', '/'), name, type.getDescriptor(), isInterface);
+        mv.visitInsn(type.getReturnType().getOpcode(IRETURN));
+        return local;
+    }
+
+    /**
+     * Implements the native method with an invokedynamic linked to an FFM downcall by {@link Downcalls}.
+     * Critical downcalls block the GC while running, so they are used only for methods without loops,
+     * or if heap arrays are passed, since only critical downcalls can access them without copying. Downcalls of methods
+     * which may throw are checked for the exception after they return
+     */
+    private void visitDowncall(int access, String name, String desc, String signature, String[] exceptions, boolean hasLoops, boolean mayThrow) {
+        var type = Type.getMethodType(desc);
+        if ((access & ACC_STATIC) == 0)
+            throw new NativizationException("Unable to nativize method '" + name + "' as a downcall: method is not static");
+        if (!isDowncallType(type.getReturnType(), false) || !Arrays.stream(type.getArgumentTypes()).allMatch(t -> isDowncallType(t, true)))
+            throw new NativizationException("Unable to nativize method '" + name + "' as a downcall: only primitives and primitive arrays are supported");
+
+        boolean passesArrays = Arrays.stream(type.getArgumentTypes()).anyMatch(t -> t.getSort() == Type.ARRAY);
+        var bootstrap = new Handle(H_INVOKESTATIC, Type.getInternalName(Downcalls.class), "bootstrap",
+                MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class, String.class, int.class)
+                        .toMethodDescriptorString(), false);
+
+        var mv = cv.visitMethod(access, name + NATIVE_SUFFIX, desc, signature, exceptions);
+        mv.visitCode();
+        int local = 0;
+        for (Type argument : type.getArgumentTypes()) {
+            mv.visitVarInsn(argument.getOpcode(ILOAD), local);
+            local += argument.getSize();
+        }
+        mv.visitInvokeDynamicInsn(name, desc, bootstrap,
+                HeaderGenerator.downcallFunctionName(className, name, desc),
+                (passesArrays || !hasLoops ? Downcalls.CRITICAL : 0) | (mayThrow ? Downcalls.CHECKED : 0));
+        mv.visitInsn(type.getReturnType().getOpcode(IRETURN));
+        // Straight-line code needs no frames, and all arguments are on the stack at once
+        mv.visitMaxs(Math.max(local, type.getReturnType().getSize()), local);
+        mv.visitEnd();
+    }
+
+    private static boolean isDowncallType(Type type, boolean allowArrays) {
+        if (type.getSort() == Type.ARRAY)
+            return allowArrays && type.getDimensions() == 1 && type.getElementType().getSort() != Type.BOOLEAN
+                    && type.getElementType().getSort() <= Type.DOUBLE;
+        return type.getSort() <= Type.DOUBLE;   // Primitives and void
+    }
 }
@@ -0,0 +1,115 @@
+package org.jinix.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkerExecutor;
+import org.jinix.NativizationException;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Copies compiled classes, replacing bodies of nativized methods. The copy replaces compiled classes in the output
+ * of the source set, so compiled classes are kept intact and Gradle can tell whether they changed
+ */
+@CacheableTask
+public abstract class NativizeClasses extends DefaultTask {
+    /**
+     * Output of the Java compilation, including the report of the annotation processor
+     */
+    @Internal
+    public abstract DirectoryProperty getClassesDirectory();
+
+    @InputFiles
+    @SkipWhenEmpty
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    protected FileTree getClasses() {
+        return getClassesDirectory().getAsFileTree();
+    }
+
+    @OutputDirectory
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @TaskAction
+    public void nativize() {
+        getWorkerExecutor().noIsolation().submit(Action.class, parameters -> {
+            parameters.getClassesDirectory().set(getClassesDirectory());
+            parameters.getDestinationDirectory().set(getDestinationDirectory());
+        });
+    }
+
+    public interface Parameters extends WorkParameters {
+        DirectoryProperty getClassesDirectory();
+        DirectoryProperty getDestinationDirectory();
+    }
+
+    public abstract static class Action implements WorkAction<Parameters> {
+        @Override
+        public void execute() {
+            var classes = getParameters().getClassesDirectory().get().getAsFile().toPath();
+            var destination = getParameters().getDestinationDirectory().get().getAsFile().toPath();
+            var reportDirectory = classes.resolve(MethodSourceReport.DIRECTORY);
+
+            try {
+                List<File> fragments = new ArrayList<>();
+                if (Files.isDirectory(reportDirectory)) {
+                    try (var stream = Files.list(reportDirectory)) {
+                        stream.filter(f -> f.toString().endsWith(MethodSourceReport.EXTENSION)).map(Path::toFile).forEach(fragments::add);
+                    }
+                }
+                // Only reported classes are read and rewritten, others are copied as they are
+                var report = MethodSourceReport.read(fragments);
+                Set<Path> reported = new HashSet<>();
+                for (String className : report.getClassNames()) {
+                    reported.add(classes.resolve(report.getClassData(className).classFile));
+                }
+
+                Utils.cleanDirectory(destination);
+                List<Path> files;
+                try (var stream = Files.walk(classes)) {
+                    files = stream.filter(Files::isRegularFile).filter(f -> !f.startsWith(reportDirectory)).toList();
+                }
+                for (Path file : files) {
+                    var target = destination.resolve(classes.relativize(file));
+                    Files.createDirectories(target.getParent());
+                    if (reported.contains(file)) {
+                        Files.write(target, transform(file, report));
+                    } else {
+                        Files.copy(file, target);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static byte[] transform(Path classFile, MethodSourceReport report) {
+            try {
+                var reader = new ClassReader(Files.readAllBytes(classFile));
+                // Methods that are not nativized are copied from the reader as they are, with their frames
+                var writer = new ClassWriter(reader, 0);
+                reader.accept(new NativeMethodTransformer(writer, report, reader), 0);
+                return writer.toByteArray();
+            } catch (IOException e) {
+                throw new NativizationException("Failed to transform " + classFile, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.jinix.plugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkerExecutor;
+import org.jinix.NativizationException;
+import org.jinix.plugin.compiler.MethodNativizer;
+import org.jinix.plugin.compiler.NativizationCost;
+
+import javax.inject.Inject;
+import java.util.Map;
+
+/**
+ * Transpiles methods reported by the annotation processor into C++ sources of the native library
+ */
+@CacheableTask
+public abstract class TranspileNative extends DefaultTask {
+    /**
+     * Output of the Java compilation, including the report of the annotation processor
+     */
+    @Internal
+    public abstract DirectoryProperty getClassesDirectory();
+
+    @InputFiles
+    @SkipWhenEmpty
+    @PathSensitive(PathSensitivity.NONE)
+    protected FileTree getReport() {
+        return getClassesDirectory().getAsFileTree()
+                .matching(spec -> spec.include(MethodSourceReport.DIRECTORY + "/*" + MethodSourceReport.EXTENSION));
+    }
+
+    /**
+     * Sources of nativized methods and helpers they call, which are transpiled with them
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getSourceDirectories();
+
+    /**
+     * Resolves types used by nativized methods
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    @Input
+    public abstract Property<Boolean> getFailOnUnprofitable();
+
+    /**
+     * Instruments nativized methods with counters of calls, native time, upcalls and field accesses
+     */
+    @Input
+    public abstract Property<Boolean> getMetrics();
+
+    @Internal
+    public abstract Property<TypeSolverService> getTypeSolverService();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @TaskAction
+    public void transpile() {
+        getWorkerExecutor().noIsolation().submit(Action.class, parameters -> {
+            parameters.getReport().from(getReport());
+            parameters.getSourceDirectories().from(getSourceDirectories());
+            parameters.getClasspath().from(getClasspath());
+            parameters.getFailOnUnprofitable().set(getFailOnUnprofitable());
+            parameters.getMetrics().set(getMetrics());
+            parameters.getTypeSolverService().set(getTypeSolverService());
+            parameters.getDestinationDirectory().set(getDestinationDirectory());
+        });
+    }
+
+    public interface Parameters extends WorkParameters {
+        ConfigurableFileCollection getReport();
+        ConfigurableFileCollection getSourceDirectories();
+        ConfigurableFileCollection getClasspath();
+        Property<Boolean> getFailOnUnprofitable();
+        Property<Boolean> getMetrics();
+        Property<TypeSolverService> getTypeSolverService();
+        DirectoryProperty getDestinationDirectory();
+    }
+
+    public abstract static class Action implements WorkAction<Parameters> {
+        private static final Logger logger = Logging.getLogger(TranspileNative.class);
+
+        @Override
+        public void execute() {
+            var parameters = getParameters();
+            var report = MethodSourceReport.read(parameters.getReport().getFiles());
+            var solver = parameters.getTypeSolverService().get()
+                    .solver(parameters.getSourceDirectories().getFiles(), parameters.getClasspath().getFiles());
+
+            var nativizer = new MethodNativizer(solver.typeSolver(), solver.parsedSources());
+            nativizer.setMetrics(parameters.getMetrics().get());
+            var costs = nativizer.transpile(report, parameters.getSourceDirectories().getFiles(), parameters.getDestinationDirectory().get().getAsFile());
+            reportProfitability(costs, parameters.getFailOnUnprofitable().get());
+        }
+
+        private static void reportProfitability(Map<String, NativizationCost> costs, boolean failOnUnprofitable) {
+            costs.forEach((method, cost) -> logger.lifecycle("Jinix: {}: {}", method, cost.summary()));
+
+            var unprofitable = costs.entrySet().stream().filter(e -> !e.getValue().isProfitable()).map(Map.Entry::getKey).toList();
+            if (!unprofitable.isEmpty() && failOnUnprofitable) {
+                throw new NativizationException("Methods likely slower nativized: " + String.join(", ", unprofitable)
+                        + ". Remove @Nativize or set jinix.failOnUnprofitable to false");
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.jinix.plugin;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.resolution.TypeSolver;
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.resolution.model.SymbolReference;
+import com.github.javaparser.symbolsolver.cache.GuavaCache;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver.ExceptionHandlers;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import javassist.ClassPool;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Type solvers and parsed sources shared by transpilations of all projects. Indexing jars of the class path takes
+ * seconds, so solvers are kept for as long as the daemon keeps the plugin loaded, and reused by later builds. Jars are
+ * indexed again when their contents change, and only sources that changed are parsed again. The service itself only
+ * lives for a build
+ */
+public abstract class TypeSolverService implements BuildService<BuildServiceParameters.None> {
+    public static final String NAME = "jinixTypeSolver";
+
+    // Indexed jars, which may be shared between projects, and solvers of projects by their source directories
+    private static final Map<Path, Cached<JarTypeSolver>> jars = new ConcurrentHashMap<>();
+    private static final Map<List<Path>, SoftReference<Project>> projects = new ConcurrentHashMap<>();
+    private static final Map<Path, JarHash> jarHashes = new ConcurrentHashMap<>();
+
+    static {
+        // Jars of other projects are rebuilt at the same paths, so their contents must not be read from JarFiles
+        // the JVM keeps open for earlier builds
+        ClassPool.cacheOpenedJarFile = false;
+    }
+
+    /**
+     * @param parsedSources compilation units by their source, which are only valid with this solver
+     */
+    public record Solver(TypeSolver typeSolver, Map<String, CompilationUnit> parsedSources) {}
+
+    // Softly referenced, so the daemon can free memory of jars it no longer builds with
+    private record Cached<T>(String hash, SoftReference<T> value) {
+        @Nullable T get(String hash) {
+            return this.hash.equals(hash) ? value.get() : null;
+        }
+    }
+
+    private record JarHash(long modified, String hash) {}
+
+    /**
+     * @return a solver of Java's libraries, the source directories and the class path, which has to be thread-safe
+     * as methods are transpiled in parallel
+     */
+    public Solver solver(Collection<File> sourceDirectories, Collection<File> classpath) {
+        var directories = sourceDirectories.stream().filter(File::isDirectory).map(f -> f.toPath().toAbsolutePath()).sorted().toList();
+        var jars = classpath.stream().filter(File::isFile).map(f -> f.toPath().toAbsolutePath()).distinct().sorted().toList();
+
+        var digest = sha256();
+        for (Path jar : jars) update(digest, jar + "=" + jarHash(jar));
+        var classpathHash = HexFormat.of().formatHex(digest.digest());
+        Map<Path, String> fileHashes = new HashMap<>();
+        for (Path directory : directories) fileHashes.putAll(fileHashes(directory));
+
+        var cached = projects.get(directories);
+        var project = cached == null ? null : cached.get();
+        if (project == null || !project.classpathHash.equals(classpathHash)) {
+            project = new Project(directories, jars, classpathHash);
+            projects.put(directories, new SoftReference<>(project));
+        }
+        project.invalidate(fileHashes);
+        return project.solver;
+    }
+
+    /**
+     * Solver of a project, which is reused until its class path changes. Parsed sources are dropped by file
+     */
+    private static class Project {
+        private final String classpathHash;
+        private final Solver solver;
+        // Resolved types of the solver, and files and directories parsed by solvers of the source directories
+        private final Cache<String, SymbolReference<ResolvedReferenceTypeDeclaration>> types = softCache();
+        private final List<Cache<Path, Optional<CompilationUnit>>> parsedFiles = new ArrayList<>();
+        private final List<Cache<Path, List<CompilationUnit>>> parsedDirectories = new ArrayList<>();
+        private final List<Cache<String, SymbolReference<ResolvedReferenceTypeDeclaration>>> foundTypes = new ArrayList<>();
+        private Map<Path, String> fileHashes = Map.of();
+
+        Project(List<Path> sourceDirectories, List<Path> jars, String classpathHash) {
+            this.classpathHash = classpathHash;
+
+            // Methods are transpiled in parallel, so the solver uses a thread-safe cache
+            var solver = new CombinedTypeSolver(ExceptionHandlers.IGNORE_NONE, List.of(), new GuavaCache<>(types));
+            solver.add(new ReflectionTypeSolver());   // Java's libraries
+            for (Path directory : sourceDirectories) {
+                parsedFiles.add(softCache());
+                parsedDirectories.add(softCache());
+                foundTypes.add(softCache());
+                solver.add(new JavaParserTypeSolver(directory, new JavaParser(), new GuavaCache<>(parsedFiles.getLast()),
+                        new GuavaCache<>(parsedDirectories.getLast()), new GuavaCache<>(foundTypes.getLast())) {
+                    @Override
+                    public synchronized SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+                        return super.tryToSolveType(name);  // Its parser is not thread-safe
+                    }
+                });
+            }
+            solver.add(new DelegatingTypeSolver(createClasspathSolver(jars)));
+            this.solver = new Solver(solver, new ConcurrentHashMap<>());
+        }
+
+        /**
+         * Drops sources that were added, removed or modified since the last build. Types resolved in the remaining
+         * ones may refer to declarations of changed sources, so they are resolved again
+         */
+        synchronized void invalidate(Map<Path, String> fileHashes) {
+            var changed = new HashSet<Path>();
+            this.fileHashes.forEach((file, hash) -> { if (!hash.equals(fileHashes.get(file))) changed.add(file); });
+            fileHashes.forEach((file, hash) -> { if (!hash.equals(this.fileHashes.get(file))) changed.add(file); });
+            this.fileHashes = fileHashes;
+            if (changed.isEmpty()) return;
+
+            for (Path file : changed) {
+                parsedFiles.forEach(cache -> cache.invalidate(file));
+                for (Path directory = file.getParent(); directory != null; directory = directory.getParent()) {
+                    for (var cache : parsedDirectories) cache.invalidate(directory);
+                }
+            }
+            foundTypes.forEach(Cache::invalidateAll);
+            types.invalidateAll();
+
+            var hashes = new HashSet<>(fileHashes.values());
+            solver.parsedSources().keySet().removeIf(source -> !hashes.contains(HexFormat.of().formatHex(
+                    sha256().digest(source.getBytes(StandardCharsets.UTF_8)))));
+            solver.parsedSources().values().forEach(Project::clearResolvedTypes);
+            for (var cache : parsedFiles) cache.asMap().values().forEach(unit -> unit.ifPresent(Project::clearResolvedTypes));
+            for (var cache : parsedDirectories) cache.asMap().values().forEach(units -> units.forEach(Project::clearResolvedTypes));
+        }
+
+        // JavaParser keeps resolved types in the nodes, the compilation unit keeps its symbol resolver
+        private static void clearResolvedTypes(CompilationUnit unit) {
+            unit.walk(node -> {
+                if (node != unit) List.copyOf(node.getDataKeys()).forEach(node::removeData);
+            });
+        }
+
+        private static <K, V> Cache<K, V> softCache() {
+            return CacheBuilder.newBuilder().softValues().build();
+        }
+    }
+
+    /**
+     * Types of jars only refer to other jars and Java's libraries, so they are resolved without project sources
+     */
+    private static TypeSolver createClasspathSolver(List<Path> jars) {
+        var solver = new CombinedTypeSolver(ExceptionHandlers.IGNORE_NONE, List.of(),
+                new GuavaCache<>(CacheBuilder.newBuilder().softValues().build()));
+        solver.add(new ReflectionTypeSolver());
+        for (Path jar : jars) solver.add(new DelegatingTypeSolver(jarSolver(jar, solver)));
+        return solver;
+    }
+
+    /**
+     * Indexes a jar, unless it was indexed with the same contents before. Types of the jar refer to others through
+     * the class path it was first indexed for, which has the jars it depends on as well
+     */
+    static JarTypeSolver jarSolver(Path jar, TypeSolver classpathSolver) {
+        var hash = jarHash(jar);
+        var cached = jars.get(jar);
+        var solver = cached == null ? null : cached.get(hash);
+        if (solver != null) return solver;
+
+        Logging.getLogger(TypeSolverService.class).info("Jinix: indexing {}", jar);
+        try {
+            solver = new JarTypeSolver(jar);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to index " + jar, e);
+        }
+        solver.setParent(classpathSolver);
+        jars.put(jar, new Cached<>(hash, new SoftReference<>(solver)));
+        return solver;
+    }
+
+    /**
+     * Jars are only hashed again if they were modified
+     */
+    private static String jarHash(Path jar) {
+        return jarHashes.compute(jar, (path, cached) -> {
+            try {
+                var modified = Files.getLastModifiedTime(path).toMillis();
+                return cached != null && cached.modified() == modified ? cached : new JarHash(modified, fileHash(path));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).hash();
+    }
+
+    /**
+     * Solver in another combined solver, which keeps the parent of the solver it delegates to. A solver can only
+     * have one parent
+     */
+    private static class DelegatingTypeSolver implements TypeSolver {
+        private final TypeSolver solver;
+        private TypeSolver parent;
+
+        DelegatingTypeSolver(TypeSolver solver) {
+            this.solver = solver;
+        }
+
+        @Override
+        public TypeSolver getParent() {
+            return parent;
+        }
+
+        @Override
+        public void setParent(TypeSolver parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public SymbolReference<ResolvedReferenceTypeDeclaration> tryToSolveType(String name) {
+            return solver.tryToSolveType(name);
+        }
+    }
+
+    private static Map<Path, String> fileHashes(Path directory) {
+        Map<Path, String> hashes = new HashMap<>();
+        try (var stream = Files.walk(directory)) {
+            for (Path file : stream.filter(Files::isRegularFile).toList()) hashes.put(file, fileHash(file));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return hashes;
+    }
+
+    private static String fileHash(Path file) throws IOException {
+        var digest = sha256();
+        try (InputStream stream = new DigestInputStream(Files.newInputStream(file), digest)) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,5 +1,21 @@
 package org.jinix.plugin;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
 class Utils {
+    private Utils() {}
 
+    /**
+     * Deletes everything in the directory, which task outputs are rewritten from scratch in
+     */
+    static void cleanDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (var stream = Files.walk(directory)) {
+            for (Path path : stream.sorted(Comparator.reverseOrder()).filter(p -> !p.equals(directory)).toList())
+                Files.delete(path);
+        }
+    }
 }
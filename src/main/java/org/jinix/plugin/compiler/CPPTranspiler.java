@@ -3,6 +3,8 @@ package org.jinix.plugin.compiler;
 import com.github.javaparser.ast.Modifier;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import com.github.javaparser.ast.body.VariableDeclarator;
 import com.github.javaparser.ast.expr.*;
 import com.github.javaparser.ast.stmt.*;
 import com.github.javaparser.ast.type.Type;
@@ -13,15 +15,18 @@ import com.github.javaparser.resolution.declarations.ResolvedMethodDeclaration;
 import com.github.javaparser.resolution.declarations.ResolvedParameterDeclaration;
 import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
 import com.github.javaparser.resolution.model.typesystem.ReferenceTypeImpl;
+import com.github.javaparser.resolution.types.ResolvedPrimitiveType;
 import com.github.javaparser.resolution.types.ResolvedType;
 import org.jetbrains.annotations.Nullable;
-import org.jinix.Jinix;
+import org.jinix.NativizationException;
 import org.jinix.plugin.MethodSourceReport;
+import org.jinix.plugin.NativeMethodTransformer;
 
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -31,22 +36,111 @@ public class CPPTranspiler extends Transpiler {
     private static final int INDENT_LENGTH = 4;
     protected static final String ENV_PARAM = "env";
     protected static final String THIS_PARAM = "thisObject";
+    private static final String METRICS_CLASS = "org.jinix.JinixMetrics";
+    private static final String PARALLEL_THREADS = "jinix_parallel_threads";
+    private static final String BATCH_RESULTS = "jinix_results";
+    private static final String PARALLEL_THREADS_DECLARATION = "int " + PARALLEL_THREADS + ";";
+    private static final String DOWNCALL_THROWN = "jinix_downcall_thrown";
+    private static final String DOWNCALL_THROWN_DECLARATION = "thread_local JinixThrow " + DOWNCALL_THROWN + ";";
+    // Read by Downcalls after downcalls which may throw, as C++ exceptions cannot be raised without JNIEnv
+    private static final String DOWNCALL_FAILURE_FUNCTION = """
+            // Kind, index and length of the exception thrown by the last downcall of the thread, reading the kind clears it
+            extern "C" JNIEXPORT jint jinix_downcall_failure(jint part) {
+                JinixThrow &thrown = %s;
+                if (part == 0) {
+                    jint kind = thrown.kind;
+                    thrown.kind = JinixThrow::NONE;
+                    return kind;
+                }
+                return part == 1 ? thrown.index : thrown.length;
+            }""".formatted(DOWNCALL_THROWN);
+    private static final Pattern INLINE_FUNCTION = Pattern.compile("^(?=\\w+ \\*?\\w+\\()", Pattern.MULTILINE);
 
-    private final Set<Include> toInclude = new HashSet<>();
+    private final Set<Include> toInclude = EnumSet.noneOf(Include.class);
     public final LinkedHashSet<JniStatement> jniStatements = new LinkedHashSet<>();
     // Contains used functions, which is used for filtering unused util functions
     private final Set<String> usedUtilFunctions = new HashSet<>();
+    private boolean cacheFields = true;
+    private boolean metrics;
+    private boolean lineDirectives;
+    private boolean parallelLoops;  // If any loop is shared between OpenMP threads
+    private boolean downcalls;      // If any method is nativized as a downcall
+    // Indexes of counters of nativized methods by qualified name, if metrics are enabled
+    private Map<String, Integer> metricIndexes = Map.of();
+    private CallGraph callGraph;
+    final List<String> transpiledHelpers = new ArrayList<>();
+    // JNINativeMethod entries by their declaring class
+    final Map<String, List<String>> registeredNatives = new LinkedHashMap<>();
+    // Classes whose JNI IDs each native function uses, and functions it calls directly
+    private final Map<String, Set<JniStatement>> functionJniClasses = new HashMap<>();
+    private final Map<String, Set<String>> functionCalls = new HashMap<>();
+    private final Map<String, Set<String>> classFunctions = new LinkedHashMap<>();
+    // constexpr definitions of compile-time constants by their name
+    final Map<String, String> constants = new TreeMap<>();
+    // Java frames of functions of nativized methods and helpers, as in stack traces
+    final Map<String, String> symbols = new LinkedHashMap<>();
+    // Costs of nativized methods by qualified name, and of all functions by their name
+    final Map<String, NativizationCost> costs = new LinkedHashMap<>();
+    private final Map<String, NativizationCost> functionCosts = new HashMap<>();
 
     // Per transpilation:
     private CodeTreeLookup lookup;
     private ResolvedType thisType;
+    private Set<String> modifiedArrays;
+    private FieldCache fieldCache;
+    private boolean usesJni;    // Pinned arrays forbid any other JNI call until they are released
+    private boolean mayThrow;   // If a JinixThrow can leave the function, e.g. for an array index out of bounds
+    private Set<JniStatement> usedJniClasses;
+    private Set<String> calledFunctions;
+    private @Nullable String sourceFile;
+    private NativizationCost cost;
+    private int loopDepth;
+    private boolean parallel;   // If loops can be shared between threads, outside of parallel loops
 
     protected CPPTranspiler(TypeSolver solver, MethodSourceReport report) {
         super(solver, report);
     }
 
+    // Shares the call graph and costs of helpers, which are only read once methods are transpiled
+    private CPPTranspiler(CPPTranspiler parent) {
+        super(parent.solver, parent.sourceReport);
+        this.cacheFields = parent.cacheFields;
+        this.metrics = parent.metrics;
+        this.metricIndexes = parent.metricIndexes;
+        this.lineDirectives = parent.lineDirectives;
+        this.callGraph = parent.callGraph;
+        this.functionCosts.putAll(parent.functionCosts);
+    }
+
     @Override
-    protected void beforeMethods(PrintWriter out) throws Exception {
+    protected Transpiler forMethod() {
+        return new CPPTranspiler(this);
+    }
+
+    @Override
+    protected void merge(Transpiler methodTranspiler) {
+        var other = (CPPTranspiler) methodTranspiler;
+        toInclude.addAll(other.toInclude);
+        jniStatements.addAll(other.jniStatements);
+        usedUtilFunctions.addAll(other.usedUtilFunctions);
+        other.registeredNatives.forEach((className, natives) ->
+                registeredNatives.computeIfAbsent(className, k -> new ArrayList<>()).addAll(natives));
+        functionJniClasses.putAll(other.functionJniClasses);
+        functionCalls.putAll(other.functionCalls);
+        other.classFunctions.forEach((className, functions) ->
+                classFunctions.computeIfAbsent(className, k -> new LinkedHashSet<>()).addAll(functions));
+        costs.putAll(other.costs);
+        functionCosts.putAll(other.functionCosts);
+        symbols.putAll(other.symbols);
+        constants.putAll(other.constants);
+        parallelLoops |= other.parallelLoops;
+        downcalls |= other.downcalls;
+    }
+
+    @Override
+    protected void writeSharedHeader(PrintWriter out) throws Exception {
+        out.println("#ifndef JINIX_SHARED_H");
+        out.println("#define JINIX_SHARED_H");
         out.println("#include \"jinix.h\"");
         toInclude.forEach(i -> out.println("#include \"" + i.getFile() + "\""));
         out.println();
@@ -56,51 +150,520 @@ public class CPPTranspiler extends Transpiler {
             var utilContents = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
             out.println(filterUnusedUtils(utilContents));
         }
+        if (metrics) {
+            try (var stream = CPPTranspiler.class.getResourceAsStream("/jinix_metrics.cpp")) {
+                assert stream != null;
+                out.println();
+                out.println(new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
         out.println();
 
-        if (!jniStatements.isEmpty()) {
-            sortJni();
-            out.println("// --- GLOBAL JNI OBJECTS ---");
-            jniStatements.forEach(s -> out.println(s.declaration));
+        out.println("// --- GLOBAL JNI OBJECTS ---");
+        jniStatements.forEach(s -> out.println("extern " + s.declaration));
+        if (parallelLoops) out.println("extern " + PARALLEL_THREADS_DECLARATION);
+        if (downcalls) out.println("extern " + DOWNCALL_THROWN_DECLARATION);
+        jniStatements.stream().filter(s -> s.dependency == null).forEach(s -> out.println("bool " + jniInitName(s) + "(JNIEnv *env);"));
+
+        if (!constants.isEmpty()) {
             out.println();
-            out.println("void Java_" + Jinix.class.getName().replace('.', '_') + "_init(JNIEnv *env) {");
-            jniStatements.forEach(s -> out.println(indent(s.initialization)));
-            out.println("}");
+            out.println("// --- CONSTANTS ---");
+            constants.values().forEach(out::println);
         }
+
+        if (!transpiledHelpers.isEmpty()) {
+            out.println();
+            out.println("// --- NATIVE HELPERS ---");     // Inline, so they can be inlined into the methods of every class
+            transpiledHelpers.forEach(h -> out.println(h.substring(0, h.indexOf(") {")) + ");"));
+            out.println();
+            transpiledHelpers.forEach(h -> out.println(h + "\n"));
+        }
+        out.println("#endif");
     }
 
     @Override
-    protected void afterMethods(PrintWriter writer) {
+    protected void writeSharedUnit(PrintWriter out) {
+        out.println("#include \"" + SHARED_NAME + "." + getHeaderExtension() + "\"");
+        out.println();
+        out.println("// --- GLOBAL JNI OBJECTS ---");
+        jniStatements.forEach(s -> out.println(s.declaration));
+        if (parallelLoops) out.println(PARALLEL_THREADS_DECLARATION);
+        if (downcalls) out.println(DOWNCALL_THROWN_DECLARATION);
+        out.println();
+        if (downcalls) {
+            out.println(DOWNCALL_FAILURE_FUNCTION);
+            out.println();
+        }
+        out.println(transpileJniInitialization());
+        out.println();
+        if (metrics) {
+            out.println(transpileMetricNames());
+            out.println();
+        }
+        out.println(transpileOnLoad());
+    }
+
+    @Override
+    protected void beforeMethods(PrintWriter out, String className) {
+        out.println("#include \"" + SHARED_NAME + "." + getHeaderExtension() + "\"");
+        if (classFunctions.containsKey(className)) {
+            out.println();
+            out.println(transpileNativesInitialization(className));
+        }
+    }
+
+    /**
+     * JNI IDs are initialized lazily, once per class they belong to, when a native method that needs them is called
+     * for the first time. Function-local statics make the initialization thread-safe. If a class or member is not
+     * found, the function returns false with the Java exception pending, and the next call initializes again
+     */
+    String transpileJniInitialization() {
+        cost = null;    // Not part of any method
+        Map<JniStatement, List<JniStatement>> byClass = new LinkedHashMap<>();
+        jniStatements.stream().filter(s -> s.dependency == null)
+                .forEach(s -> byClass.computeIfAbsent(s, k -> new ArrayList<>()).add(s));
+        jniStatements.stream().filter(s -> s.dependency != null)
+                .forEach(s -> byClass.computeIfAbsent(s.dependency, k -> new ArrayList<>(List.of(k))).add(s));
+
+        var result = new StringJoiner("\n\n");
+        byClass.forEach((classStatement, statements) -> result.add(onceFunction(jniInitName(classStatement),
+                statements.stream().map(s -> s.initialization() + "\nif (" + s.resultingVar() + " == nullptr) throw JinixPendingException();").toList(), false)));
+        return result.toString();
+    }
+
+    /**
+     * Called at the start of every native method of the class, initializes the classes its functions use
+     */
+    String transpileNativesInitialization(String className) {
+        var classes = jniClassesOf(classFunctions.get(className));
+        return classes.isEmpty() ? "static inline bool " + classInitName(className) + "(JNIEnv *env) { return true; }"     // Optimized out
+                : onceFunction(classInitName(className), classes.stream()
+                        .map(c -> "if (!" + jniInitName(c) + "(env)) throw JinixPendingException();").toList(), true);
+    }
+
+    // An exception leaving the initializer of a static leaves it uninitialized, so the next call runs it again
+    private String onceFunction(String name, List<String> statements, boolean local) {
+        return "%sbool %s(JNIEnv *env) {\n%s}".formatted(local ? "static " : "", name, """
+                try {
+                    static bool initialized = [env] {
+                %s
+                        return true;
+                    }();
+                    return initialized;
+                } catch (const JinixPendingException &) {
+                    return false;
+                }
+                """.formatted(String.join("\n", statements).indent(INDENT_LENGTH * 2).stripTrailing()).indent(INDENT_LENGTH));
+    }
+
+    // Returns from a native function with the exception of a failed initialization pending
+    private static String initializeNatives(String className, String returnType) {
+        return "if (!%s(%s)) return%s;\n".formatted(classInitName(className), ENV_PARAM, returnType.equals("void") ? "" : " {}");
+    }
+
+    /**
+     * JNI classes used by the functions and all functions they call directly
+     */
+    private Set<JniStatement> jniClassesOf(Collection<String> functions) {
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>(functions);
+        Set<JniStatement> classes = new LinkedHashSet<>();
+        while (!queue.isEmpty()) {
+            var function = queue.poll();
+            if (!visited.add(function)) continue;
+            classes.addAll(functionJniClasses.getOrDefault(function, Set.of()));
+            queue.addAll(functionCalls.getOrDefault(function, Set.of()));
+        }
+        return classes;
+    }
+
+    private static String jniInitName(JniStatement classStatement) {
+        return "jinix_init_" + classStatement.resultingVar;
+    }
+
+    private static String classInitName(String className) {
+        return "jinix_init_natives_" + uniqueClassName(className);
+    }
+
+    /**
+     * Binds all nativized methods with RegisterNatives once the library is loaded, so the JVM does not have to look up
+     * exported symbols on the first call of each method
+     */
+    String transpileOnLoad() {
+        cost = null;
+        var body = new StringJoiner("\n");
+        body.add("JNIEnv *env;");
+        body.add("if (vm->GetEnv((void **) &env, JNI_VERSION_1_8) != JNI_OK) return JNI_ERR;");
+        body.add("jclass clazz;");
+        if (parallelLoops) body.add(PARALLEL_THREADS + " = JinixParallelism(env);");
+
+        Map<String, List<String>> natives = new LinkedHashMap<>(registeredNatives);
+        if (metrics) natives.put(METRICS_CLASS, List.of(
+                "{(char *) \"methods\", (char *) \"()[Ljava/lang/String;\", (void *) JinixMetricsMethods}",
+                "{(char *) \"snapshot\", (char *) \"()[J\", (void *) JinixMetricsSnapshot}"));
+
+        natives.forEach((className, classNatives) -> {
+            var arrayName = "natives_" + uniqueClassName(className);
+            body.add("JNINativeMethod " + arrayName + "[] = {");
+            classNatives.forEach(n -> body.add(indent(n + ",")));
+            body.add("};");
+            body.add("clazz = " + jniEnvCall("FindClass", "\"" + className.replace(".", "/") + "\"") + ";");
+            body.add("if (clazz == nullptr || " + jniEnvCall("RegisterNatives", "clazz", arrayName, String.valueOf(classNatives.size())) + " != JNI_OK) return JNI_ERR;");
+            body.add(jniEnvCall("DeleteLocalRef", "clazz") + ";");
+        });
+
+        body.add("return JNI_VERSION_1_8;");
+        return "JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {\n" + body.toString().indent(INDENT_LENGTH) + "}";
+    }
+
+    /**
+     * Names of nativized methods, in the order of their counters
+     */
+    String transpileMetricNames() {
+        var names = metricIndexes.keySet().stream().map(n -> indent("\"" + n + "\",")).collect(Collectors.joining("\n"));
+        return "const int jinix_metrics_method_count = %d;\nconst char *const jinix_metrics_names[] = {\n%s\n};"
+                .formatted(metricIndexes.size(), names);
+    }
+
+    @Override
+    protected void beforeTranspilation(Map<String, List<MethodDeclaration>> methodsMap) {
+        if (metrics) {
+            // Assigned before methods are transpiled in parallel, so indexes do not depend on scheduling
+            Map<String, Integer> indexes = new LinkedHashMap<>();
+            methodsMap.forEach((className, methods) -> methods.forEach(m -> indexes.putIfAbsent(className + "." + m.getName(), indexes.size())));
+            this.metricIndexes = indexes;
+        }
+        analyzeCalls(methodsMap);
+    }
+
+    /**
+     * Finds methods which can be called directly and transpiles them. A method is left to JNI upcalls
+     * if it cannot be transpiled
+     */
+    void analyzeCalls(Map<String, List<MethodDeclaration>> methodsMap) {
+        this.callGraph = new CallGraph(solver, methodsMap, helper -> {
+            try {
+                new CPPTranspiler(solver, sourceReport).transpileHelper(helper);
+                return true;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        });
+        callGraph.helpers().forEach(h -> transpiledHelpers.add(transpileHelper(h)));
+    }
+
+    private String transpileHelper(CallGraph.Callee helper) {
+        var method = helper.declaration();
+        var body = transpileBody(helper.className(), method, false);
+        functionJniClasses.put(helper.functionName(), usedJniClasses);
+        functionCosts.put(helper.functionName(), cost);
+        functionCalls.put(helper.functionName(), calledFunctions);
+        addSymbol(helper.functionName(), helper.className(), method);
 
+        return lineDirective(method) + "static inline %s %s(JNIEnv *%s, jobject %s%s) {\n%s}".formatted(
+                jniType(method.getType()),
+                helper.functionName(),
+                ENV_PARAM, THIS_PARAM,
+                method.getParameters().stream()
+                        .map(p -> ", " + (isPrimitiveArray(p.getType()) ? transpileType(p.getType()) + " &" : jniType(p.getType()) + " ") + p.getName())
+                        .collect(Collectors.joining()),
+                body.indent(4)
+        );
     }
 
     @Override
     protected String transpileMethod(HeaderGenerator.JniFunctionDeclaration declaration, String className, MethodDeclaration method) {
-        return "%s %s(JNIEnv *%s, jobject %s%s) {\n%s}".formatted(
+        if (isDowncall(method))
+            return transpileDowncall(declaration, className, method);
+
+        var body = transpileBody(className, method);
+        registeredNatives.computeIfAbsent(className, k -> new ArrayList<>()).add("{(char *) \"%s\", (char *) \"%s\", (void *) %s}"
+                .formatted(method.getNameAsString() + NativeMethodTransformer.NATIVE_SUFFIX, getMethodSignature(method.resolve()),
+                        entryFunction(declaration.name())));
+        functionJniClasses.put(declaration.name(), usedJniClasses);
+        functionCosts.put(declaration.name(), cost);
+        costs.put(className + "." + method.getName(), cost);
+        functionCalls.put(declaration.name(), calledFunctions);
+        classFunctions.computeIfAbsent(className, k -> new LinkedHashSet<>()).add(declaration.name());
+        addSymbol(declaration.name(), className, method);
+
+        var function = lineDirective(method) + "%s %s(JNIEnv *%s, jobject %s%s) {\n%s}".formatted(
                 declaration.returnType(),
                 declaration.name(),
                 ENV_PARAM, THIS_PARAM,
                 declaration.parameters().stream()
-                        .map(p -> ", " + jniType(p.getType()) + " " + p.getName())
+                        .map(p -> ", " + jniType(p.getType()) + " " + jniParameterName(p))
                         .collect(Collectors.joining()),
-                transpileBody(className, method).indent(4)
+                (metricsScope(className, method) + initializeNatives(className, declaration.returnType()) + body).indent(4)
         );
+        return isBatch(method) ? function + "\n\n" + transpileBatch(declaration, className, method) : function;
+    }
+
+    // Functions which may throw are registered through a wrapper, which raises the exception in Java
+    private String entryFunction(String function) {
+        if (!mayThrow) return function;
+
+        usedUtilFunctions.addAll(List.of("JinixEntry", "JinixThrow"));
+        return "JinixEntry<%s>::call".formatted(function);
+    }
+
+    /**
+     * Shares a loop between OpenMP threads. Exceptions cannot leave the threads, so once the loop ends, the one of the
+     * failing iteration Java would run first is thrown, ordered by the given expression
+     */
+    private String parallelFor(String pragma, String loop, String order, String body, boolean mayThrow) {
+        if (!mayThrow) return pragma + "\n" + loop + " {\n" + indent(body) + "\n}";
+
+        var iteration = "try {\n%s\n} catch (const JinixThrow &thrown) {\n%s\n}".formatted(indent(body),
+                indent("jinix_thrown.record(thrown, %s);".formatted(order)));
+        return "{\n%s\n}".formatted(indent("JinixThrow jinix_thrown = {};\n" + pragma + "\n" + loop + " {\n" + indent(iteration)
+                + "\n}\nif (jinix_thrown.kind != JinixThrow::NONE) throw jinix_thrown;"));
+    }
+
+    /**
+     * Calls the function of a method for each element of the argument arrays, so the JNI transition is made once
+     * for the whole batch. Arrays are pinned, and elements can be processed in parallel, if the method uses no JNI
+     */
+    String transpileBatch(HeaderGenerator.JniFunctionDeclaration declaration, String className, MethodDeclaration method) {
+        var batchName = HeaderGenerator.batchFunctionName(method);
+        var downcall = isDowncall(method);
+        var pinned = !usesJni;
+        cost = null;    // Counted by the function of the method
+        registeredNatives.computeIfAbsent(className, k -> new ArrayList<>()).add("{(char *) \"%s\", (char *) \"%s\", (void *) %s}"
+                .formatted(method.getNameAsString() + NativeMethodTransformer.NATIVE_SUFFIX,
+                        NativeMethodTransformer.batchDescriptor(getMethodSignature(method.resolve())), entryFunction(batchName)));
+        addSymbol(batchName, className, method);
+
+        var names = new ArrayList<String>();
+        var parameters = new StringBuilder();
+        var body = new StringBuilder();
+        for (Parameter parameter : method.getParameters()) {
+            if (!parameter.getType().isPrimitiveType())
+                throw new NativizationException("Unable to nativize method '" + method.getName() + "' with batch: unsupported parameter " + parameter);
+            names.add(parameter.getNameAsString());
+            parameters.append(", %sArray jarray_%s".formatted(jniType(parameter.getType()), parameter.getNameAsString()));
+        }
+        if (!method.getType().isPrimitiveType())
+            throw new NativizationException("Unable to nativize method '" + method.getName() + "' with batch: return type is not primitive");
+
+        // Checked before anything is read, like the Java loop would
+        body.append(stmt("if (!JinixCheckBatch(%s, jarray_%s, {%s})) return;\n", ENV_PARAM, BATCH_RESULTS,
+                names.stream().map(n -> "jarray_" + n).collect(Collectors.joining(", "))));
+        usedUtilFunctions.add("JinixCheckBatch");
+        // JNI IDs are initialized before arrays are pinned, as no JNI can be used in critical regions or OpenMP threads
+        if (pinned && !downcall) body.append(initializeNatives(className, "void"));
+        toInclude.add(Include.INITIALIZER_LIST);
+        toInclude.add(Include.STDIO);
+        var types = new ArrayList<>(method.getParameters().stream().map(p -> jniType(p.getType())).toList());
+        types.add(jniType(method.getType()));
+        var arrays = new ArrayList<>(names);
+        arrays.add(BATCH_RESULTS);
+        for (int i = 0; i < arrays.size(); i++) {
+            var flags = new ArrayList<String>();
+            if (i < names.size()) flags.add("JINIX_ARRAY_READ_ONLY");
+            if (pinned) flags.add("JINIX_ARRAY_ALLOW_CRITICAL");
+            body.append(stmt("JinixArray<%s, %sArray> %s(%s, jarray_%s, %s);\n", types.get(i), types.get(i), arrays.get(i),
+                    ENV_PARAM, arrays.get(i), flags.isEmpty() ? "0" : String.join(" | ", flags)));
+        }
+        if (pinned) {
+            arrays.forEach(a -> body.append(stmt("%s.pin();\n", a)));
+            body.append(stmt("JinixScopeExit jinix_unpin([&] { %s });\n", arrays.reversed().stream()
+                    .map(a -> a + ".unpin();").collect(Collectors.joining(" "))));
+            usedUtilFunctions.add("JinixScopeExit");
+        }
+
+        // Elements are in bounds, as JinixCheckBatch compared the lengths
+        var arguments = new StringJoiner(", ");
+        if (!downcall) arguments.add(ENV_PARAM).add(THIS_PARAM);
+        names.forEach(n -> arguments.add(n + ".elements[jinix_i]"));
+        var function = downcall && mayThrow ? downcallBodyName(declaration.name()) : declaration.name();
+        var loop = stmt("for (jsize jinix_i = 0; jinix_i < %s.length; jinix_i++)", BATCH_RESULTS);
+        var call = stmt("%s.elements[jinix_i] = %s(%s);", BATCH_RESULTS, function, arguments);
+        if (pinned && isParallel(method)) {
+            parallelLoops = true;
+            usedUtilFunctions.add("JinixParallelism");
+            include(Include.THREAD);
+            if (mayThrow) usedUtilFunctions.add("JinixThrow");
+            body.append(parallelFor(stmt("#pragma omp parallel for num_threads(%s)", PARALLEL_THREADS), loop, "jinix_i", call, mayThrow)).append('\n');
+        } else {
+            body.append(loop).append(" {\n").append(indent(call)).append('\n');
+            // Elements after an exception are not processed, as in Java
+            if (!pinned) body.append(indent(stmt("if (%s) break;\n", jniEnvCall("ExceptionCheck"))));
+            body.append(stmt("}\n"));
+        }
+
+        return lineDirective(method) + "void %s(JNIEnv *%s, jobject %s%s, %sArray jarray_%s) {\n%s}".formatted(
+                batchName, ENV_PARAM, THIS_PARAM, parameters, jniType(method.getType()), BATCH_RESULTS, body.toString().indent(4));
+    }
+
+    /**
+     * Downcall functions are plain C functions without JNIEnv. Arrays are passed as elements and length,
+     * which point directly to the Java heap in critical downcalls
+     */
+    String transpileDowncall(HeaderGenerator.JniFunctionDeclaration declaration, String className, MethodDeclaration method) {
+        if (!method.isStatic())
+            throw new NativizationException("Unable to nativize method '" + method.getName() + "' as a downcall: method is not static");
+
+        var prelude = new StringBuilder(metricsScope(className, method));
+        prelude.append(stmt("JNIEnv *%s = nullptr;    // Only passed to helpers, which cannot use JNI here\n", ENV_PARAM));
+        var parameters = new StringJoiner(", ");
+        var arguments = new StringJoiner(", ");
+        for (Parameter parameter : method.getParameters()) {
+            var type = parameter.getType();
+            if (type.isArrayType() && (!isPrimitiveArray(type) || type.asArrayType().getComponentType().asString().equals("boolean")))
+                throw new NativizationException("Unable to nativize method '" + method.getName() + "' as a downcall: unsupported parameter " + parameter);
+
+            var name = jniParameterName(parameter);
+            if (isPrimitiveArray(type)) {
+                parameters.add("j%s *%s, jint %s_length".formatted(type.asArrayType().getComponentType(), name, name));
+                arguments.add(name).add(name + "_length");
+                prelude.append(stmt("%s %s(%s, %s_length);\n", transpileType(type), parameter.getName(), name, name));
+            } else {
+                parameters.add(jniType(type) + " " + name);
+                arguments.add(name);
+            }
+        }
+        if (method.getType().isArrayType())
+            throw new NativizationException("Unable to nativize method '" + method.getName() + "' as a downcall: arrays cannot be returned");
+
+        var body = transpileBody(className, method, false);
+        if (usesJni || !usedJniClasses.isEmpty())
+            throw new NativizationException("Unable to nativize method '" + method.getName() + "' as a downcall: method accesses Java objects");
+        costs.put(className + "." + method.getName(), cost);
+        addSymbol(declaration.name(), className, method);
+
+        downcalls = true;
+        usedUtilFunctions.add("JinixThrow");
+        include(Include.STDIO);
+        if (!mayThrow) {
+            var function = lineDirective(method) + "%s %s(%s) {\n%s}".formatted(declaration.returnType(), declaration.name(), parameters, (prelude + body).indent(4));
+            return isBatch(method) ? function + "\n\n" + transpileBatch(declaration, className, method) : function;
+        }
+
+        // The exception is kept for Downcalls, which throws it once the downcall returns
+        var bodyName = downcallBodyName(declaration.name());
+        var entry = stmt("try {\n%s\n} catch (const JinixThrow &thrown) {\n%s\n}", indent(stmt("return %s(%s);", bodyName, arguments)),
+                indent(stmt("%s = thrown;\nreturn %s();", DOWNCALL_THROWN, declaration.returnType())));
+        var function = lineDirective(method) + "static inline %s %s(%s) {\n%s}\n\n%s %s(%s) {\n%s\n}".formatted(
+                declaration.returnType(), bodyName, parameters, (prelude + body).indent(4),
+                declaration.returnType(), declaration.name(), parameters, indent(entry));
+        return isBatch(method) ? function + "\n\n" + transpileBatch(declaration, className, method) : function;
+    }
+
+    private static String downcallBodyName(String downcallName) {
+        return downcallName + "_body";
     }
 
     public String transpileBody(String declaringClass, MethodDeclaration method) {
+        return transpileBody(declaringClass, method, true);
+    }
+
+    // Helpers receive arrays already wrapped by the caller
+    private String transpileBody(String declaringClass, MethodDeclaration method, boolean wrapArrays) {
         this.thisType = new ReferenceTypeImpl(solver.solveType(declaringClass.replace("$", ".")));
         this.lookup = new CodeTreeLookup(method);
+        this.modifiedArrays = lookup.modifiedArrays();
+        this.fieldCache = new FieldCache(method, cacheFields);
+        this.usesJni = false;
+        this.mayThrow = false;
+        this.usedJniClasses = new LinkedHashSet<>();
+        this.calledFunctions = new LinkedHashSet<>();
+        this.sourceFile = lineDirectives ? sourcePath(declaringClass) : null;
+        this.cost = new NativizationCost(isDowncall(method));
+        this.loopDepth = 0;
+        this.parallel = isParallel(method);
 
         var result = new StringBuilder();
         var body = transpileStatementOrBlock(method.getBody().orElseThrow());
+        var cachedFields = transpileCachedFields();
+        if (wrapArrays) result.append(transpileArrayParameters(method));
+        result.append(cachedFields);
         result.append(statementBlockToCode(body));
 
         return result.toString();
     }
 
+    // Loads cached fields into locals and writes the modified ones back when the method exits
+    private String transpileCachedFields() {
+        var result = new StringBuilder();
+        for (var cached : fieldCache.cachedFields()) {
+            result.append(stmt("j%s %s\n", cached.field.getType().describe(), cachedFieldAccess(cached.field, false)));
+        }
+
+        var writeBack = writeBackCachedFields();
+        if (!writeBack.isEmpty()) {
+            result.append(stmt("JinixScopeExit jinix_write_back([&] { %s });\n", writeBack));
+            usedUtilFunctions.add("JinixScopeExit");
+        }
+
+        return result.toString();
+    }
+
+    private String writeBackCachedFields() {
+        return fieldCache.cachedFields().stream().filter(FieldCache.CachedField::isWritten)
+                .map(f -> cachedFieldAccess(f.field, true)).collect(Collectors.joining(" "));
+    }
+
+    private String reloadCachedFields() {
+        return fieldCache.cachedFields().stream().filter(f -> !f.isFinal())
+                .map(f -> cachedFieldAccess(f.field, false)).collect(Collectors.joining(" "));
+    }
+
+    private String cachedFieldAccess(ResolvedFieldDeclaration field, boolean set) {
+        var findClass = jniFindClass(field.declaringType().getQualifiedName());
+        var getFieldId = field.isStatic() ? jniGetStaticFieldId(field, findClass) : jniGetFieldId(field, findClass);
+        registerJniStatement(findClass, getFieldId);
+
+        var type = field.getType().describe();
+        var function = (set ? "Set" : "Get") + (field.isStatic() ? "Static" : "") +
+                Character.toUpperCase(type.charAt(0)) + type.substring(1) + "Field";
+        var scope = field.isStatic() ? findClass.resultingVar() : THIS_PARAM;
+
+        return set ? jniEnvCall(function, scope, getFieldId.resultingVar(), cachedFieldName(field)) + ";"
+                : cachedFieldName(field) + " = " + jniEnvCall(function, scope, getFieldId.resultingVar()) + ";";
+    }
+
+    private static String cachedFieldName(ResolvedFieldDeclaration field) {
+        return "cached_" + uniqueFieldIdName(field);
+    }
+
+    // Must be called after the body is transpiled, so it is known if arrays can be pinned
+    private String transpileArrayParameters(MethodDeclaration method) {
+        var arrays = method.getParameters().stream().filter(p -> isPrimitiveArray(p.getType())).toList();
+        if (arrays.isEmpty()) return "";
+
+        var result = new StringBuilder();
+        Map<String, List<String>> earlier = new HashMap<>();    // Names by type, the same Java array may be passed twice
+        for (Parameter parameter : arrays) {
+            var name = parameter.getNameAsString();
+            var type = transpileType(parameter.getType()).toString();
+            var sameType = earlier.computeIfAbsent(type, t -> new ArrayList<>());
+            var aliases = sameType.isEmpty() ? "" : sameType.stream().map(n -> "&" + n).collect(Collectors.joining(", ", ", {", "}"));
+            result.append(stmt("%s %s(%s, %s, %s%s);\n", type, name, ENV_PARAM, jniParameterName(parameter), arrayFlags(name, !usesJni), aliases));
+            sameType.add(name);
+            cost.add(NativizationCost.Kind.ARRAY, false, modifiedArrays.contains(name) ? 3 : 2);  // Length, read and write back
+        }
+
+        if (!usesJni) {
+            // Released before any array is written back, since Set<Type>ArrayRegion is not allowed while pinned
+            arrays.forEach(p -> result.append(stmt("%s.pin();\n", p.getNameAsString())));
+            result.append(stmt("JinixScopeExit jinix_unpin([&] { %s });\n", arrays.reversed().stream()
+                    .map(p -> p.getNameAsString() + ".unpin();").collect(Collectors.joining(" "))));
+            usedUtilFunctions.add("JinixScopeExit");
+        }
+
+        return result.toString();
+    }
+
     private List<CPPStatement> transpileStatementOrBlock(Statement statement) {
-        return statement instanceof BlockStmt stmt ? stmt.getStatements().stream().map(this::transpileStatement).collect(Collectors.toList())
-                : new ArrayList<>(List.of(transpileStatement(statement)));
+        return statement instanceof BlockStmt stmt ? stmt.getStatements().stream().map(this::transpileStatementAt).collect(Collectors.toList())
+                : new ArrayList<>(List.of(transpileStatementAt(statement)));
+    }
+
+    private CPPStatement transpileStatementAt(Statement statement) {
+        var cppStatement = transpileStatement(statement);
+        cppStatement.line = statement.getBegin().map(p -> p.line).orElse(0);
+        return cppStatement;
     }
 
     private CPPStatement transpileStatement(Statement statement) {
@@ -108,10 +671,10 @@ public class CPPTranspiler extends Transpiler {
             case ExpressionStmt stmt -> transpileExpression(stmt.getExpression());
             case IfStmt stmt -> transpileIf(stmt);
             case SwitchStmt stmt -> transpileSwitch(stmt);
-            case WhileStmt stmt -> transpileWhile(stmt);
-            case DoStmt stmt -> transpileDoWhile(stmt);
-            case ForStmt stmt -> transpileFor(stmt);
-            case ForEachStmt stmt -> transpileForEach(stmt);
+            case WhileStmt stmt -> inLoop(() -> transpileWhile(stmt));
+            case DoStmt stmt -> inLoop(() -> transpileDoWhile(stmt));
+            case ForStmt stmt -> inLoop(() -> transpileFor(stmt));
+            case ForEachStmt stmt -> inLoop(() -> transpileForEach(stmt));
 //            case BlockStmt stmt -> transpileBlock(stmt);
             case BreakStmt stmt -> transpileBreak(stmt);
             case ContinueStmt stmt -> transpileContinue(stmt);
@@ -130,7 +693,7 @@ public class CPPTranspiler extends Transpiler {
     private CPPStatement transpileReturn(ReturnStmt stmt) {
         if (stmt.getExpression().isPresent()){
             var expr = transpileExpression(stmt.getExpression().get());
-            return new CPPStatement(stmt("return %s;", expr));
+            return new CPPStatement(stmt("return %s;", toJava(stmt.getExpression().get(), expr)));
         }
 
         return new CPPStatement("return;");
@@ -173,8 +736,20 @@ public class CPPTranspiler extends Transpiler {
         return new CPPStatement(BlockType.SWITCH, blocks, formatingBlocks(result.toString()));
     }
 
+    // JNI calls in loops are counted per iteration
+    private CPPStatement inLoop(Supplier<CPPStatement> transpilation) {
+        cost.markLoop();
+        loopDepth++;
+        try {
+            return transpilation.get();
+        } finally {
+            loopDepth--;
+        }
+    }
+
     private CPPStatement transpileForEach(ForEachStmt stmt) {
         var collection = transpileExpression(stmt.getIterable());
+        if (isNativeArray(stmt.getIterable())) mayThrow = true;     // Iterating a null array
         var result = stmt("for (%s : %s) {\n#\n}", transpileExpression(stmt.getVariable()), collection);
         var block = transpileStatementOrBlock(stmt.getBody());
 
@@ -187,9 +762,35 @@ public class CPPTranspiler extends Transpiler {
                 stmt.getCompare().map(s -> transpileExpression(s).toString()).orElse(""),
                 stmt.getUpdate().stream().map(s -> transpileExpression(s).toString()).collect(Collectors.joining(", "))
         );
+        var parallelLoop = parallel ? ParallelLoop.of(stmt) : null;
+        if (parallelLoop == null) {
+            var block = transpileStatementOrBlock(stmt.getBody());
+            return new CPPStatement(BlockType.FOR, List.of(block), formatingBlocks(result));
+        }
+
+        // JNIEnv cannot be used by OpenMP threads, so the loop stays serial if its body needs JNI
+        var outerUsesJni = usesJni;
+        var outerMayThrow = mayThrow;
+        usesJni = false;
+        mayThrow = false;
+        parallel = false;
         var block = transpileStatementOrBlock(stmt.getBody());
+        var bodyUsesJni = usesJni;
+        var bodyMayThrow = mayThrow;
+        usesJni |= outerUsesJni;
+        mayThrow |= outerMayThrow;
+        parallel = true;
 
-        return new CPPStatement(BlockType.FOR, List.of(block), formatingBlocks(result));
+        if (bodyUsesJni) return new CPPStatement(BlockType.FOR, List.of(block), formatingBlocks(result));
+
+        parallelLoops = true;
+        usedUtilFunctions.add("JinixParallelism");
+        include(Include.THREAD);
+        if (bodyMayThrow) usedUtilFunctions.add("JinixThrow");
+        var loop = result.substring(0, result.indexOf(" {\n#"));
+        var pragma = parallelLoop.pragma(PARALLEL_THREADS);
+        return new CPPStatement(BlockType.FOR, List.of(block),
+                blocks -> parallelFor(pragma, loop, parallelLoop.order(), statementBlockToCode(blocks.get(0)), bodyMayThrow));
     }
 
     private CPPStatement transpileDoWhile(DoStmt stmt) {
@@ -239,6 +840,8 @@ public class CPPTranspiler extends Transpiler {
             case EnclosedExpr expr -> transpileExpression(expr.getInner()).withCode(e -> "(" + e.code + ")");
             case NameExpr expr -> transpileName(expr);
             case ThisExpr ignored -> new CPPExpression(THIS_PARAM, thisType);  // Only as an argument, not field/method access
+            case ArrayAccessExpr expr -> transpileArrayAccess(expr);
+            case ArrayCreationExpr expr -> transpileArrayCreation(expr);
             default -> throw new IllegalStateException("Unexpected value: " + stmt);
         };
     }
@@ -256,6 +859,15 @@ public class CPPTranspiler extends Transpiler {
     }
 
     private CPPExpression transpileFieldAccess(FieldAccessExpr expr) {
+        if (expr.getNameAsString().equals("length") && expr.getScope().calculateResolvedType().isArray()) {
+            var array = transpileExpression(expr.getScope());
+            if (!isNativeArray(expr.getScope()))
+                return new CPPExpression(jniEnvCall("GetArrayLength", "(jarray)" + array), ResolvedPrimitiveType.INT);
+
+            mayThrow = true;    // For a null array
+            return new CPPExpression(array + ".size()", ResolvedPrimitiveType.INT);
+        }
+
         try {
             var resolvedField = expr.resolve().asField();
             return transpileFieldAccess(expr.getScope(), resolvedField);
@@ -268,7 +880,14 @@ public class CPPTranspiler extends Transpiler {
     }
 
     private CPPExpression transpileFieldAccess(Expression scopeExpr, ResolvedFieldDeclaration resolvedField) {
-        //TODO special case for `length` in arrays
+        // Scopes of constants are class names, or variables that do not have to be evaluated
+        var constant = scopeExpr == null || scopeExpr.isNameExpr() || scopeExpr.isFieldAccessExpr() || scopeExpr.isThisExpr()
+                ? ConstantValues.of(resolvedField) : null;
+        if (constant != null && !(constant instanceof String))     // Strings are jstring objects, so still read from the field
+            return transpileConstant(resolvedField, constant);
+        if (fieldCache.isCached(resolvedField))
+            return new CPPExpression(cachedFieldName(resolvedField), resolvedField.getType());
+
         JniStatement findClass = null;
         String scope, scopeClass;
         if (scopeExpr == null) {
@@ -318,6 +937,10 @@ public class CPPTranspiler extends Transpiler {
 
     private CPPExpression transpileCall(MethodCallExpr expr) {
         var resolvedMethod = expr.resolve();
+        var callee = callGraph == null ? null : callGraph.directCallee(expr);
+        if (callee != null)
+            return transpileDirectCall(expr, resolvedMethod, callee);
+
         JniStatement findClass = null;
 
         var scopeExpr = expr.getScope().orElse(null);
@@ -346,9 +969,12 @@ public class CPPTranspiler extends Transpiler {
 
         // Params order should be: jobject/jclass, methodId, ...provided args. The first one is added in the block below
         List<String> args = new ArrayList<>();
+        Set<String> passedArrays = new LinkedHashSet<>();
         args.add(getMethodId.resultingVar);
         for (Expression argument : expr.getArguments()) {
-            args.add(transpileExpression(argument).toString());
+            var transpiled = transpileExpression(argument);
+            if (argument.isNameExpr() && isNativeArray(argument)) passedArrays.add(transpiled.code);
+            args.add(toJava(argument, transpiled));
         }
 
         String callType, cast = "", type;
@@ -371,7 +997,80 @@ public class CPPTranspiler extends Transpiler {
         }
 
         registerJniStatement(findClass, getMethodId);
-        return new CPPExpression(cast + jniEnvCall(callType + type + "Method", args.toArray(String[]::new)), resolvedMethod.getReturnType());
+        var function = callType + type + "Method";
+        var jniCast = cast;
+        var call = syncCachedFields(args, resolvedMethod.isStatic() || scope.equals(THIS_PARAM) ? Set.of(0, 1) : Set.of(1),
+                passedArrays, resolvedMethod.getReturnType().isVoid(), a -> jniCast + jniEnvCall(function, a.toArray(String[]::new)));
+        return new CPPExpression(call, resolvedMethod.getReturnType());
+    }
+
+    private CPPExpression transpileDirectCall(MethodCallExpr expr, ResolvedMethodDeclaration resolvedMethod, CallGraph.Callee callee) {
+        var scopeExpr = expr.getScope().orElse(null);
+        List<String> args = new ArrayList<>();
+        args.add(ENV_PARAM);
+        if (resolvedMethod.isStatic()) {
+            args.add("nullptr");
+        } else if (scopeExpr == null || scopeExpr instanceof ThisExpr) {
+            args.add(THIS_PARAM);
+        } else {
+            args.add(transpileExpression(scopeExpr).code);
+        }
+
+        Set<String> passedArrays = new LinkedHashSet<>();
+        for (Expression argument : expr.getArguments()) {
+            var transpiled = transpileExpression(argument);
+            if (callee.nativized() && argument.isNameExpr() && isNativeArray(argument)) passedArrays.add(transpiled.code);
+            args.add(callee.nativized() ? toJava(argument, transpiled) : transpiled.code);  // Helpers take native arrays by reference
+        }
+
+        calledFunctions.add(callee.functionName());
+        mayThrow = true;    // Exceptions of the callee pass through
+        var calleeCost = functionCosts.get(callee.functionName());
+        if (calleeCost != null) cost.addCallee(calleeCost, loopDepth > 0);
+        Function<List<String>, String> call = a -> callee.functionName() + "(" + String.join(", ", a) + ")";
+        if (!callGraph.usesJni(callee) && passedArrays.isEmpty())
+            return new CPPExpression(call.apply(args), resolvedMethod.getReturnType());
+
+        usesJni = true;
+        var constantArgs = args.get(1).equals(THIS_PARAM) || args.get(1).equals("nullptr") ? Set.of(0, 1) : Set.of(0);
+        return new CPPExpression(syncCachedFields(args, constantArgs, passedArrays, resolvedMethod.getReturnType().isVoid(), call),
+                resolvedMethod.getReturnType());
+    }
+
+    /**
+     * Calls that use JNI can observe and modify cached fields, so these are written back before the call and reloaded
+     * after it. Copies of native arrays passed to the call are read again as well, as Java may have changed them.
+     * Arguments, except the constant ones, are evaluated first, as Java would, by passing them to a lambda
+     */
+    private String syncCachedFields(List<String> args, Set<Integer> constantArgs, Set<String> passedArrays, boolean returnsVoid,
+                                    Function<List<String>, String> call) {
+        var writeBack = writeBackCachedFields();
+        var reload = new StringJoiner(" ");
+        var reloadFields = reloadCachedFields();
+        if (!reloadFields.isEmpty()) reload.add(reloadFields);
+        for (String array : passedArrays) {
+            reload.add(array + ".fromJava();");
+            cost.add(NativizationCost.Kind.ARRAY, loopDepth > 0, 1);
+        }
+        if (writeBack.isEmpty() && reload.length() == 0)
+            return call.apply(args);
+
+        List<String> params = new ArrayList<>(), values = new ArrayList<>(), callArgs = new ArrayList<>(args);
+        for (int i = 0; i < args.size(); i++) {
+            if (constantArgs.contains(i)) continue;
+            var param = "jinix_arg" + params.size();
+            params.add("auto " + param);
+            values.add(args.get(i));
+            callArgs.set(i, param);
+        }
+
+        var body = new StringJoiner(" ");
+        if (!writeBack.isEmpty()) body.add(writeBack);
+        body.add(returnsVoid ? call.apply(callArgs) + ";" : "auto jinix_result = " + call.apply(callArgs) + ";");
+        if (reload.length() > 0) body.add(reload.toString());
+        if (!returnsVoid) body.add("return jinix_result;");
+
+        return "[&](%s) { %s }(%s)".formatted(String.join(", ", params), body, String.join(", ", values));
     }
 
     private CPPExpression transpileConditional(ConditionalExpr expr) {
@@ -391,7 +1090,7 @@ public class CPPTranspiler extends Transpiler {
             throw new IllegalArgumentException("Unsupported >>>=");
         }
 
-        var scope = extractScope(expr.getTarget());
+        var scope = fieldCache.cachedField(expr.getTarget()) == null ? extractScope(expr.getTarget()) : null;
         if (scope == null)
             return new CPPExpression("%s %s %s", expr.calculateResolvedType(),
                     transpileExpression(expr.getTarget()), expr.getOperator().asString(), transpileExpression(expr.getValue()));
@@ -464,7 +1163,7 @@ public class CPPTranspiler extends Transpiler {
     }
 
     private CPPExpression transpileUnary(UnaryExpr expr) {
-        var scope = extractScope(expr.getExpression());
+        var scope = fieldCache.cachedField(expr.getExpression()) == null ? extractScope(expr.getExpression()) : null;
         if (scope == null || !isModifyingUnary(expr.getOperator()))
             return expr.getOperator().isPostfix() ?
                     new CPPExpression("%s%s", expr.calculateResolvedType(),
@@ -504,6 +1203,107 @@ public class CPPTranspiler extends Transpiler {
         return unaryOp;
     }
 
+    private CPPExpression transpileArrayAccess(ArrayAccessExpr expr) {
+        if (!isNativeArray(expr.getName()))
+            throw new IllegalArgumentException("Only primitive array parameters and local variables can be indexed: " + expr);
+
+        mayThrow = true;
+        return new CPPExpression("%s[%s]", expr.calculateResolvedType(),
+                transpileExpression(expr.getName()), transpileExpression(expr.getIndex()));
+    }
+
+    private CPPExpression transpileArrayCreation(ArrayCreationExpr expr) {
+        if (!expr.getElementType().isPrimitiveType())
+            throw new IllegalArgumentException("Only primitive arrays can be created: " + expr);
+
+        return new CPPExpression("%s(%s)", expr.calculateResolvedType(),
+                arrayType(expr.getElementType().asString()), arrayConstructorArgs(expr));
+    }
+
+    private String arrayConstructorArgs(ArrayCreationExpr expr) {
+        if (expr.getInitializer().isPresent())
+            return arrayConstructorArgs(expr.getInitializer().get());
+        if (expr.getLevels().size() > 1)
+            throw new IllegalArgumentException("Multidimensional arrays are not supported: " + expr);
+
+        var dimension = expr.getLevels().get(0).getDimension().orElseThrow();
+        if (!(dimension instanceof IntegerLiteralExpr)) mayThrow = true;   // For a negative size
+        return ENV_PARAM + ", " + transpileExpression(dimension);
+    }
+
+    private String arrayConstructorArgs(ArrayInitializerExpr expr) {
+        return ENV_PARAM + ", {" + expr.getValues().stream().map(v -> transpileExpression(v).toString()).collect(Collectors.joining(", ")) + "}";
+    }
+
+    private String transpileArrayDeclarator(VariableDeclarator variable) {
+        var name = variable.getNameAsString();
+        var initializer = variable.getInitializer().orElseThrow(() ->
+                new IllegalArgumentException("Array variable '" + name + "' must be initialized where it is declared"));
+
+        if (isNativeArray(initializer) && initializer.isNameExpr()) {
+            return "&" + name + " = " + transpileExpression(initializer);    // Alias of another native array
+        } else if (initializer instanceof ArrayCreationExpr creation) {
+            return name + "(" + arrayConstructorArgs(creation) + ")";
+        } else if (initializer instanceof ArrayInitializerExpr values) {
+            return name + "(" + arrayConstructorArgs(values) + ")";
+        }
+
+        // Array that came from Java, e.g. as a result of a call
+        return "%s(%s, (%s)%s, %s)".formatted(name, ENV_PARAM, jniType(variable.getType()),
+                transpileExpression(initializer), arrayFlags(name, false));
+    }
+
+    private String arrayFlags(String name, boolean allowCritical) {
+        var flags = new ArrayList<String>();
+        if (!modifiedArrays.contains(name)) flags.add("JINIX_ARRAY_READ_ONLY");
+        if (allowCritical) flags.add("JINIX_ARRAY_ALLOW_CRITICAL");
+        return flags.isEmpty() ? "0" : String.join(" | ", flags);
+    }
+
+    /**
+     * Native arrays are wrapped in JinixArray, so they have to be converted back before being passed to Java
+     */
+    private String toJava(Expression expression, CPPExpression transpiled) {
+        if (!isNativeArray(expression)) return transpiled.code;
+
+        usesJni = true;
+        cost.add(NativizationCost.Kind.ARRAY, loopDepth > 0, 1);
+        return transpiled.code + ".toJava()";
+    }
+
+    static boolean isNativeArray(Expression expression) {
+        if (expression instanceof ArrayCreationExpr) return true;
+        if (!(expression instanceof NameExpr name)) return false;
+
+        try {
+            var resolved = name.resolve();
+            return !(resolved instanceof ResolvedFieldDeclaration) && isPrimitiveArray(resolved.getType());
+        } catch (UnsolvedSymbolException e) {
+            return false;
+        }
+    }
+
+    private static boolean isPrimitiveArray(ResolvedType type) {
+        return type.isArray() && type.asArrayType().getComponentType().isPrimitive();
+    }
+
+    private static boolean isPrimitiveArray(Type type) {
+        return type.isArrayType() && type.asArrayType().getComponentType().isPrimitiveType();
+    }
+
+    private static String jniParameterName(Parameter parameter) {
+        return isPrimitiveArray(parameter.getType()) ? "jarray_" + parameter.getNameAsString() : parameter.getNameAsString();
+    }
+
+    private String arrayType(String elementType) {
+        include(Include.STRING);
+        include(Include.STDLIB);
+        include(Include.INITIALIZER_LIST);
+        include(Include.STDIO);
+        usedUtilFunctions.addAll(List.of("JinixArray", "JinixThrow", "JinixGetArrayRegion", "JinixSetArrayRegion", "JinixNewArray"));
+        return "JinixArray<j%s, j%sArray>".formatted(elementType, elementType);
+    }
+
     private CPPExpression transpileBinary(BinaryExpr expr) {
         var left = transpileExpression(expr.getLeft());
         var right = transpileExpression(expr.getRight());
@@ -516,6 +1316,32 @@ public class CPPTranspiler extends Transpiler {
         return new CPPExpression("%s %s %s", expr.calculateResolvedType(), left, operator, right);
     }
 
+    /**
+     * Primitive compile-time constants are inlined like javac does, as constexpr values in the shared header,
+     * so they need no JNI IDs
+     */
+    private CPPExpression transpileConstant(ResolvedFieldDeclaration field, Object value) {
+        var name = "constant_" + uniqueFieldIdName(field);
+        constants.put(name, "constexpr j%s %s = %s;".formatted(field.getType().describe(), name, cppLiteral(value)));
+        return new CPPExpression(name, field.getType());
+    }
+
+    private static String cppLiteral(Object value) {
+        return switch (value) {
+            case Character c -> "(jchar) " + (int) c;
+            case Byte b -> "(jbyte) " + b;
+            case Short s -> "(jshort) " + s;
+            case Integer i -> i == Integer.MIN_VALUE ? "(-2147483647 - 1)" : i.toString();
+            case Long l -> l == Long.MIN_VALUE ? "(-9223372036854775807LL - 1)" : l + "LL";
+            case Float f when f.isNaN() -> "__builtin_nanf(\"\")";
+            case Float f when f.isInfinite() -> (f > 0 ? "" : "-") + "__builtin_inff()";
+            case Float f -> f + "f";
+            case Double d when d.isNaN() -> "__builtin_nan(\"\")";
+            case Double d when d.isInfinite() -> (d > 0 ? "" : "-") + "__builtin_inf()";
+            default -> value.toString();    // Doubles and booleans
+        };
+    }
+
     private CPPExpression transpileLiteral(LiteralExpr expr) {
         return switch (expr) {
             case TextBlockLiteralExpr l -> new CPPExpression("\"" + l.getValue().stripIndent().replace("\n", "\\\n") + "\"", l.calculateResolvedType());
@@ -531,7 +1357,7 @@ public class CPPTranspiler extends Transpiler {
         expr.getModifiers().stream().map(this::transpileModifier).forEach(m -> builder.append(m).append(" "));
         builder.append(transpileType(expr.getCommonType())).append(" ");
 
-        expr.getVariables().stream().map(v ->
+        expr.getVariables().stream().map(v -> isPrimitiveArray(v.getType()) ? transpileArrayDeclarator(v) :
                 v.getInitializer().map(i -> v.getNameAsString() + " = " + transpileExpression(i)).orElse(v.getNameAsString())
         ).collect(Collectors.collectingAndThen(Collectors.joining(", "), builder::append));
 
@@ -556,6 +1382,8 @@ public class CPPTranspiler extends Transpiler {
         } else if (res.equals("String")) {
             include(Include.STRING);
             res = "std::string";
+        } else if (isPrimitiveArray(type)) {
+            res = arrayType(type.asArrayType().getComponentType().asString());
         } else if (!type.isPrimitiveType()){
             res = "jobject";
         }
@@ -563,6 +1391,53 @@ public class CPPTranspiler extends Transpiler {
         return new CPPExpression(res, type.resolve());
     }
 
+    void setCacheFields(boolean cacheFields) {
+        this.cacheFields = cacheFields;
+    }
+
+    /**
+     * Counts calls, time, upcalls and field accesses of nativized methods, which are read by org.jinix.JinixMetrics
+     */
+    void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Maps generated code to lines of Java sources with #line directives, so debuggers and profilers using the debug
+     * info show where native code comes from
+     */
+    void setLineDirectives(boolean lineDirectives) {
+        this.lineDirectives = lineDirectives;
+    }
+
+    // Must be called after the body is transpiled, which finds the source file
+    private String lineDirective(MethodDeclaration method) {
+        return sourceFile == null ? "" : lineDirective(method.getBegin().map(p -> p.line).orElse(1));
+    }
+
+    private String lineDirective(int line) {
+        return "#line %d \"%s\"\n".formatted(line, sourceFile);
+    }
+
+    // Relative to a source directory, like paths in class files
+    private String sourcePath(String className) {
+        var data = sourceReport == null ? null : sourceReport.getClassData(className);
+        if (data != null) return data.sourcePath;
+        var topLevel = className.contains("$") ? className.substring(0, className.indexOf('$')) : className;
+        return topLevel.replace('.', '/') + ".java";
+    }
+
+    private void addSymbol(String function, String className, MethodDeclaration method) {
+        var path = sourcePath(className);
+        var fileName = path.substring(path.lastIndexOf('/') + 1);
+        symbols.put(function, "%s.%s(%s:%d)".formatted(className, method.getNameAsString(), fileName,
+                method.getBegin().map(p -> p.line).orElse(0)));
+    }
+
+    private String metricsScope(String className, MethodDeclaration method) {
+        return metrics ? stmt("JinixMetricsScope jinix_metrics(%d);\n", metricIndexes.get(className + "." + method.getName())) : "";
+    }
+
     // ---------- JNI TOOLS ----------
     private String jniEnvCall(String functionName, String... params) {
         return jniEnvCall(functionName, false, params);
@@ -570,8 +1445,17 @@ public class CPPTranspiler extends Transpiler {
 
     private String jniEnvCall(String functionName, boolean envAsArg, String... params) {
         usedUtilFunctions.add(functionName);
-        return envAsArg ? "%s(%s, %s)".formatted(functionName, ENV_PARAM, String.join(", ", params))
+        usesJni = true;
+        if (cost != null) cost.record(functionName, loopDepth > 0);
+        var call = envAsArg ? "%s(%s, %s)".formatted(functionName, ENV_PARAM, String.join(", ", params))
                 : "%s->%s(%s)".formatted(ENV_PARAM, functionName, String.join(", ", params));
+        if (!metrics || cost == null || functionName.endsWith("ID")) return call;
+
+        return switch (NativizationCost.Kind.of(functionName)) {
+            case UPCALL -> "(JinixCountUpcall(), %s)".formatted(call);
+            case FIELD_GET, FIELD_SET -> "(JinixCountFieldAccess(), %s)".formatted(call);
+            default -> call;
+        };
 
     }
 
@@ -590,7 +1474,7 @@ public class CPPTranspiler extends Transpiler {
                 if (name.startsWith("[")) {
                     yield name.replace(".", "/");
                 } else if (name.endsWith("[]")) {
-                    yield "[L" + name.replace("[]", "").replace(".", "/") + ";";
+                    yield "[" + typeToJniSignature(name.substring(0, name.length() - 2));
                 } else {
                     yield "L" + name.replace(".", "/") + ";";
                 }
@@ -598,7 +1482,7 @@ public class CPPTranspiler extends Transpiler {
         };
     }
 
-    private static String getMethodSignature(ResolvedMethodDeclaration method) {
+    static String getMethodSignature(ResolvedMethodDeclaration method) {
         return "(%s)%s".formatted(
                 //TODO support for generics
                 IntStream.range(0, method.getNumberOfParams()).mapToObj(method::getParam)
@@ -612,7 +1496,7 @@ public class CPPTranspiler extends Transpiler {
         return typeToJniSignature(field.getType().describe());
     }
 
-    private static String uniqueMethodIdName(ResolvedMethodDeclaration method) {
+    static String uniqueMethodIdName(ResolvedMethodDeclaration method) {
         var signature = getMethodSignature(method).replaceAll("^\\((.*)\\).+$", "$1")
                 .replaceAll("[();]", "")
                 .replace("[", "A").replace(".", "_").replace("/", "_");
@@ -630,14 +1514,14 @@ public class CPPTranspiler extends Transpiler {
     }
 
     private static String uniqueClassName(String className) {
-        return className.replace(".", "_");
+        return className.replace(".", "_").replace("$", "_");
     }
 
     private JniStatement jniGetStaticMethodId(ResolvedMethodDeclaration method, JniStatement classStatement) {
         var varName = uniqueMethodIdName(method);
         return new JniStatement("jmethodID " + varName + ";", varName + " = " +
                 jniEnvCall("GetStaticMethodID", classStatement.resultingVar, "\"" + method.getName() + "\"", "\"" + getMethodSignature(method) + "\"") + ";",
-                JniStatementType.GET_STATIC_METHOD_ID, varName
+                JniStatementType.GET_STATIC_METHOD_ID, varName, classStatement
         );
     }
 
@@ -645,7 +1529,7 @@ public class CPPTranspiler extends Transpiler {
         var varName = uniqueMethodIdName(method);
         return new JniStatement("jmethodID " + varName + ";", varName + " = " +
                 jniEnvCall("GetMethodID", classStatement.resultingVar, "\"" + method.getName() + "\"", "\"" + getMethodSignature(method) + "\"") + ";",
-                JniStatementType.GET_METHOD_ID, varName
+                JniStatementType.GET_METHOD_ID, varName, classStatement
         );
     }
 
@@ -653,7 +1537,7 @@ public class CPPTranspiler extends Transpiler {
         var varName = uniqueFieldIdName(field);
         return new JniStatement("jfieldID " + varName + ";", varName + " = " +
                 jniEnvCall("GetStaticFieldID", classStatement.resultingVar, "\"" + field.getName() + "\"", "\"" + getFieldSignature(field) + "\"") + ";",
-                JniStatementType.GET_STATIC_FIELD_ID, varName
+                JniStatementType.GET_STATIC_FIELD_ID, varName, classStatement
         );
     }
 
@@ -661,44 +1545,24 @@ public class CPPTranspiler extends Transpiler {
         var varName = uniqueFieldIdName(field);
         return new JniStatement("jfieldID " + varName + ";", varName + " = " +
                 jniEnvCall("GetFieldID", classStatement.resultingVar, "\"" + field.getName() + "\"", "\"" + getFieldSignature(field) + "\"") + ";",
-                JniStatementType.GET_FIELD_ID, varName
+                JniStatementType.GET_FIELD_ID, varName, classStatement
         );
     }
 
     private JniStatement jniFindClass(String name) {
         var varName = "class_" + uniqueClassName(name);
-        return new JniStatement("jclass " + varName + ";", varName + " = " + jniEnvCall("FindClass", "\"" + name.replace(".", "/") + "\"") + ";",
-                JniStatementType.FIND_CLASS, varName
+        usedUtilFunctions.addAll(List.of("JinixGlobalClass", "JinixPendingException"));
+        return new JniStatement("jclass " + varName + ";", varName + " = JinixGlobalClass(env, \"" + name.replace(".", "/") + "\");",
+                JniStatementType.FIND_CLASS, varName, null
         );
     }
 
-    private void sortJni() {
-        var temp = new ArrayList<>(this.jniStatements);
-        temp.sort((a, b) -> {
-            boolean aRequiresB = dependsOn(a, b);
-            boolean bRequiresA = dependsOn(b, a);
-
-            if (aRequiresB && bRequiresA)
-                throw new IllegalStateException("Circular dependency detected between JNI statements:\n" + a + "\n" + b);
-
-            if (aRequiresB) return 1;
-            if (bRequiresA) return -1;
-            return 0;
-        });
-        jniStatements.clear();
-        jniStatements.addAll(temp);
-    }
-
-    private boolean dependsOn(JniStatement stmt, JniStatement dependency) {
-        return stmt.initialization.matches(".*\\b" + Pattern.quote(dependency.resultingVar) + "\\b.*");
-    }
-
-    private void registerJniStatement(List<JniStatement> statements) {
-        this.jniStatements.addAll(statements);
-    }
-
     private void registerJniStatement(JniStatement... statements) {
-        Collections.addAll(this.jniStatements, statements);
+        for (JniStatement statement : statements) {
+            jniStatements.add(statement);
+            usedJniClasses.add(statement.dependency == null ? statement : statement.dependency);
+            cost.addClass((statement.dependency == null ? statement : statement.dependency).resultingVar);
+        }
     }
 
     // ---------- UTILS ----------
@@ -714,6 +1578,11 @@ public class CPPTranspiler extends Transpiler {
         return "cpp";
     }
 
+    @Override
+    protected String getHeaderExtension() {
+        return "h";
+    }
+
     private <T extends Node> String combine(List<T> nodes, Function<T, String> mapper){
         return nodes.stream().map(mapper).collect(Collectors.joining("\n"));
     }
@@ -747,23 +1616,28 @@ public class CPPTranspiler extends Transpiler {
         StringJoiner joiner = new StringJoiner("\n");
         for (CPPStatement cppStatement : cppStatements) {
             String codeAsStatement = cppStatement.getCodeAsStatement();
+            if (sourceFile != null && cppStatement.line > 0) joiner.add(lineDirective(cppStatement.line).stripTrailing());
             joiner.add(codeAsStatement);
         }
         return joiner.toString();
     }
 
     private String filterUnusedUtils(String contents) {
-        var functionNamePattern = Pattern.compile("^.+ (\\w+)\\(.+\\) ?\\{\n");
+        var functionNamePattern = Pattern.compile("^\\w+ \\*?(\\w+)\\(");
+        var structNamePattern = Pattern.compile("^(?:template<.+> )?struct (\\w+)", Pattern.MULTILINE);
         var result = new StringJoiner("\n\n");
         for (String function : contents.split("\n\n")) {
             if (function.trim().startsWith("//")) continue;
 
-            var nameMatcher = functionNamePattern.matcher(function);
-            if (!nameMatcher.find()) continue;
-            var name = nameMatcher.group(1);
+            var functionMatcher = functionNamePattern.matcher(function);
+            var structMatcher = structNamePattern.matcher(function);
+            String name;
+            if (functionMatcher.find()) name = functionMatcher.group(1);
+            else if (structMatcher.find()) name = structMatcher.group(1);
+            else continue;
 
-            if (usedUtilFunctions.contains(name))
-                result.add(function);
+            if (usedUtilFunctions.contains(name))    // Defined in the shared header of all translation units
+                result.add(INLINE_FUNCTION.matcher(function).replaceAll("inline "));
         }
 
         return result.toString();
@@ -781,7 +1655,11 @@ public class CPPTranspiler extends Transpiler {
     }
 
     public enum Include {
-        STRING("string.h");
+        STRING("string.h"),
+        STDLIB("stdlib.h"),
+        INITIALIZER_LIST("initializer_list"),
+        STDIO("stdio.h"),
+        THREAD("thread");
 
         private final String file;
 
@@ -798,6 +1676,8 @@ public class CPPTranspiler extends Transpiler {
         private final Function<List<List<CPPStatement>>, String> codeProvider;
         public final @Nullable BlockType blockType;
         public final List<List<CPPStatement>> blocks = new ArrayList<>();
+        // Of the Java statement, 0 if unknown
+        int line;
 
         public CPPStatement(String code) {
             this.codeProvider = bs -> code;
@@ -825,7 +1705,11 @@ public class CPPTranspiler extends Transpiler {
         IF, FOR, WHILE, SWITCH
     }
 
-    public record JniStatement(String declaration, String initialization, JniStatementType type, String resultingVar) {
+    /**
+     * @param dependency class statement the ID is obtained from, null for class statements themselves
+     */
+    public record JniStatement(String declaration, String initialization, JniStatementType type, String resultingVar,
+                               @Nullable JniStatement dependency) {
         @Override
             public boolean equals(Object o) {
                 if (o == null || getClass() != o.getClass()) return false;
@@ -0,0 +1,146 @@
+package org.jinix.plugin.compiler;
+
+import com.github.javaparser.ast.Modifier;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.resolution.TypeSolver;
+import com.github.javaparser.resolution.declarations.ResolvedMethodDeclaration;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Finds methods reachable from nativized methods that can be called as plain C++ functions instead of JNI upcalls.
+ * Those are methods with source code that cannot be overridden (private, static, final or declared in a final class),
+ * and nativized methods with the same restriction, which are called through their JNI function
+ */
+class CallGraph {
+    private final JavaSymbolSolver symbolSolver;
+    private final Map<String, Callee> callees = new LinkedHashMap<>();    // By qualified signature
+    private final Set<Callee> usingJni = new HashSet<>();
+
+    public CallGraph(TypeSolver solver, Map<String, List<MethodDeclaration>> roots, Predicate<Callee> transpilable) {
+        this.symbolSolver = new JavaSymbolSolver(solver);
+
+        Set<String> visited = new HashSet<>();
+        Deque<Callee> queue = new ArrayDeque<>();
+        roots.forEach((className, methods) -> methods.forEach(method -> {
+            var resolved = method.resolve();
+            var root = new Callee(className, method, HeaderGenerator.jniFunctionName(method), true);
+            visited.add(resolved.getQualifiedSignature());
+            queue.add(root);
+            if (cannotBeOverridden(method) && !Transpiler.isDowncall(method))  // Downcalls have no JNI function
+                callees.put(resolved.getQualifiedSignature(), root);
+        }));
+
+        while (!queue.isEmpty()) {
+            for (MethodCallExpr call : queue.poll().declaration().findAll(MethodCallExpr.class)) {
+                var resolved = resolve(call);
+                if (resolved == null || !visited.add(resolved.getQualifiedSignature())) continue;
+
+                var declaration = resolved.toAst(MethodDeclaration.class).orElse(null);
+                if (declaration == null || !isHelperCandidate(declaration)) continue;
+                declaration.findCompilationUnit().filter(cu -> !cu.containsData(Node.SYMBOL_RESOLVER_KEY))
+                        .ifPresent(symbolSolver::inject);
+
+                var helper = new Callee(resolved.declaringType().getQualifiedName(), declaration,
+                        "jinix_" + CPPTranspiler.uniqueMethodIdName(resolved), false);
+                if (!transpilable.test(helper)) continue;
+
+                callees.put(resolved.getQualifiedSignature(), helper);
+                queue.add(helper);
+            }
+        }
+
+        findJniUsages();
+    }
+
+    /**
+     * Returns the callee if this call can be made directly. Helpers take native arrays by reference,
+     * so arrays that came from Java have to go through an upcall
+     */
+    public @Nullable Callee directCallee(MethodCallExpr call) {
+        var resolved = resolve(call);
+        var callee = resolved == null ? null : callees.get(resolved.getQualifiedSignature());
+        if (callee == null) return null;
+
+        if (!callee.nativized() && call.getArguments().stream().anyMatch(a -> isArray(a) && !CPPTranspiler.isNativeArray(a)))
+            return null;
+        return callee;
+    }
+
+    public List<Callee> helpers() {
+        return callees.values().stream().filter(c -> !c.nativized()).toList();
+    }
+
+    /**
+     * Whether the callee or anything it calls directly uses JNI, which means it could observe cached fields
+     * and cannot be called while arrays are pinned
+     */
+    public boolean usesJni(Callee callee) {
+        return usingJni.contains(callee);
+    }
+
+    private void findJniUsages() {
+        for (Callee callee : callees.values()) {
+            var declaration = callee.declaration();
+            boolean convertsArrays = callee.nativized() && (declaration.getType().isArrayType()
+                    || declaration.getParameters().stream().anyMatch(p -> p.getType().isArrayType()));
+
+            if (convertsArrays || !declaration.findAll(ObjectCreationExpr.class).isEmpty()
+                    || declaration.findAll(Expression.class, e -> e.isNameExpr() || e.isFieldAccessExpr()).stream()
+                        .anyMatch(e -> FieldCache.resolveField(e) != null)
+                    || declaration.findAll(MethodCallExpr.class).stream().anyMatch(c -> directCallee(c) == null)) {
+                usingJni.add(callee);
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Callee callee : callees.values()) {
+                if (usingJni.contains(callee)) continue;
+
+                var callsJni = callee.declaration().findAll(MethodCallExpr.class).stream()
+                        .map(this::directCallee).anyMatch(usingJni::contains);
+                if (callsJni) changed = usingJni.add(callee);
+            }
+        }
+    }
+
+    private static boolean isHelperCandidate(MethodDeclaration method) {
+        return cannotBeOverridden(method) && method.getBody().isPresent() && !method.isSynchronized() && !method.isNative()
+                && method.getTypeParameters().isEmpty() && !method.getType().isArrayType()
+                && method.getParameters().stream().noneMatch(p -> p.isVarArgs()
+                    || List.of("String", "java.lang.String").contains(p.getType().asString()));
+    }
+
+    private static boolean cannotBeOverridden(MethodDeclaration method) {
+        return method.isPrivate() || method.isStatic() || method.isFinal() ||
+                method.getParentNode().filter(p -> p instanceof ClassOrInterfaceDeclaration type && type.isFinal()).isPresent();
+    }
+
+    private static boolean isArray(Expression expression) {
+        try {
+            return expression.calculateResolvedType().isArray();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static @Nullable ResolvedMethodDeclaration resolve(MethodCallExpr call) {
+        try {
+            return call.resolve();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public record Callee(String className, MethodDeclaration declaration, String functionName, boolean nativized) {}
+}
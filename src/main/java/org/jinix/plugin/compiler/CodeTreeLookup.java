@@ -1,14 +1,18 @@
 package org.jinix.plugin.compiler;
 
 import com.github.javaparser.ast.body.MethodDeclaration;
-import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
 import com.github.javaparser.ast.nodeTypes.NodeWithBody;
 import com.github.javaparser.ast.nodeTypes.NodeWithStatements;
 import com.github.javaparser.ast.stmt.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -32,6 +36,33 @@ class CodeTreeLookup {
         );
     }
 
+    /**
+     * Finds names of the arrays whose elements are written to, including arrays aliased by written variables
+     */
+    public Set<String> modifiedArrays() {
+        var aliases = new HashMap<String, String>();
+        source.findAll(VariableDeclarator.class).forEach(v -> v.getInitializer()
+                .filter(i -> v.getType().isArrayType() && i.isNameExpr())
+                .ifPresent(i -> aliases.put(v.getNameAsString(), i.asNameExpr().getNameAsString())));
+
+        var targets = new ArrayList<Expression>();
+        source.findAll(AssignExpr.class).forEach(a -> targets.add(a.getTarget()));
+        source.findAll(UnaryExpr.class).stream()
+                .filter(u -> u.getOperator().name().endsWith("INCREMENT") || u.getOperator().name().endsWith("DECREMENT"))
+                .forEach(u -> targets.add(u.getExpression()));
+
+        var result = new HashSet<String>();
+        for (Expression target : targets) {
+            if (target instanceof ArrayAccessExpr access && access.getName() instanceof NameExpr name) {
+                var array = name.getNameAsString();
+                while (array != null && result.add(array)) {
+                    array = aliases.get(array);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Goes through the tree of elements that contain other nodes, including themselves
      */
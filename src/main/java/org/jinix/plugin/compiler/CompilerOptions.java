@@ -0,0 +1,76 @@
+package org.jinix.plugin.compiler;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the transpiled sources are compiled into the native library
+ *
+ * @param optimizationLevel value of {@code -O}, e.g. "2", "3", "s" or "fast"
+ * @param march target architecture, e.g. "native" or "x86-64-v3", or null for the compiler's default
+ * @param debug adds debug info and keeps frame pointers, so the library can be debugged and profiled
+ * @param separateDebugInfo adds debug info to release libraries too, but moves it to {@link NativeCompiler#DEBUG_INFO_NAME},
+ *                          so profilers can map native code to Java lines while the library stays small
+ */
+public record CompilerOptions(String compiler, String optimizationLevel, @Nullable String march, @Nullable String mtune,
+                              boolean lto, boolean debug, boolean separateDebugInfo, List<String> extraFlags,
+                              Profile profile) implements Serializable {
+    public static final CompilerOptions DEFAULT = new CompilerOptions("gcc", "3", null, null, false, false, true, List.of(),
+            Profile.OFF);
+
+    /**
+     * Profile guided optimization phase
+     */
+    public enum Profile {
+        OFF,
+        GENERATE,   // Instrumented library, which writes a profile of the workload it runs
+        USE
+    }
+
+    public CompilerOptions {
+        if (compiler.isBlank()) throw new IllegalArgumentException("Compiler cannot be empty");
+        if (!optimizationLevel.matches("[0-3sgz]|fast"))
+            throw new IllegalArgumentException("Unsupported optimization level: " + optimizationLevel);
+        extraFlags = List.copyOf(extraFlags);
+    }
+
+    /**
+     * Flags passed to the compiler in addition to the ones every Jinix library needs
+     *
+     * @param profilePath where .gcda profiles are written by an instrumented library or read when using them
+     */
+    public List<String> flags(@Nullable String profilePath) {
+        if (profile != Profile.OFF && profilePath == null)
+            throw new IllegalArgumentException("Profile guided optimization needs a profile directory");
+
+        List<String> flags = new ArrayList<>();
+        flags.add("-O" + optimizationLevel);
+        if (debug) {
+            flags.add("-g");
+            flags.add("-fno-omit-frame-pointer");
+        } else {
+            if (separateDebugInfo) flags.add("-g");     // Does not change the generated code
+            flags.add("-DNDEBUG");
+        }
+        if (march != null) flags.add("-march=" + march);
+        if (mtune != null) flags.add("-mtune=" + mtune);
+        if (lto) flags.add("-flto");
+        switch (profile) {
+            case GENERATE -> {
+                flags.add("-fprofile-generate=" + profilePath);
+                flags.add("-fprofile-update=prefer-atomic");    // Native methods can run on many threads
+            }
+            case USE -> {
+                flags.add("-fprofile-use=" + profilePath);
+                flags.add("-fprofile-correction");
+                flags.add("-Wno-error=coverage-mismatch");    // Stale profiles of changed methods are ignored
+            }
+            case OFF -> {}
+        }
+        flags.addAll(extraFlags);
+        return flags;
+    }
+}
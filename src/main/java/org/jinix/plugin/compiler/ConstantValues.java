@@ -0,0 +1,298 @@
+package org.jinix.plugin.compiler;
+
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.resolution.declarations.ResolvedFieldDeclaration;
+import com.github.javaparser.resolution.types.ResolvedType;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.ASM9;
+
+/**
+ * Evaluates compile-time constant fields (JLS 15.29), which javac inlines as well: static final fields of primitive
+ * or String type initialized with a constant expression. Fields declared in sources are evaluated from their
+ * initializer, fields of Java's libraries are read from the ConstantValue attribute of their class file. Constants of
+ * other jars are not inlined, since the plugin cannot see the versions on the class path of the project
+ */
+class ConstantValues {
+    private static final int MAX_DEPTH = 32;   // Of constants referring to other constants
+
+    private ConstantValues() {}
+
+    /**
+     * Returns the value boxed as the type of the field, or null if the field is not a constant
+     */
+    static @Nullable Object of(ResolvedFieldDeclaration field) {
+        return of(field, new HashSet<>());
+    }
+
+    private static @Nullable Object of(ResolvedFieldDeclaration field, Set<String> visiting) {
+        if (visiting.size() > MAX_DEPTH) return null;
+        var type = field.getType();
+        if (!type.isPrimitive() && !isString(type)) return null;
+
+        var key = field.declaringType().getQualifiedName() + "." + field.getName();
+        if (!visiting.add(key)) return null;
+        try {
+            var declaration = field.toAst(FieldDeclaration.class);
+            if (declaration.isPresent()) {
+                // Fields of interfaces are implicitly static and final
+                var inInterface = declaration.get().getParentNode()
+                        .filter(p -> p instanceof ClassOrInterfaceDeclaration c && c.isInterface()).isPresent();
+                if (!inInterface && !(declaration.get().isStatic() && declaration.get().isFinal())) return null;
+                var initializer = declaration.get().getVariables().stream()
+                        .filter(v -> v.getNameAsString().equals(field.getName()))
+                        .findFirst().flatMap(VariableDeclarator::getInitializer).orElse(null);
+                var value = initializer == null ? null : evaluate(initializer, visiting);
+                return value == null ? null : convert(value, type);
+            }
+            return field.isStatic() ? classFileValue(field) : null;
+        } catch (RuntimeException e) {    // Unresolvable names and types which cannot be constants
+            return null;
+        } finally {
+            visiting.remove(key);
+        }
+    }
+
+    private static @Nullable Object classFileValue(ResolvedFieldDeclaration field) {
+        var declaringType = field.declaringType();
+        var binaryName = declaringType.getPackageName().isEmpty() ? declaringType.getClassName()
+                : declaringType.getPackageName() + "." + declaringType.getClassName().replace('.', '$');
+        // Only finds classes of the JDK, as the type solver resolves them by reflection as well
+        var loader = ClassLoader.getPlatformClassLoader();
+        try (var stream = loader.getResourceAsStream(binaryName.replace('.', '/') + ".class")) {
+            if (stream == null) return null;
+
+            Object[] value = new Object[1];
+            new ClassReader(stream).accept(new ClassVisitor(ASM9) {
+                @Override
+                public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object constant) {
+                    if (name.equals(field.getName())) value[0] = constant;
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            // Attributes of boolean, byte, char and short fields hold an int
+            return value[0] == null ? null : convert(value[0], field.getType());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static @Nullable Object evaluate(Expression expression, Set<String> visiting) {
+        return switch (expression) {
+            case IntegerLiteralExpr e -> e.asNumber().intValue();
+            case LongLiteralExpr e -> e.asNumber().longValue();
+            case DoubleLiteralExpr e -> e.getValue().toLowerCase().endsWith("f")    // Boxed separately, not promoted
+                    ? (Object) Float.parseFloat(e.getValue().replace("_", "")) : (Object) Double.parseDouble(e.getValue().replace("_", ""));
+            case CharLiteralExpr e -> e.asChar();
+            case BooleanLiteralExpr e -> e.getValue();
+            case StringLiteralExpr e -> e.asString();
+            case TextBlockLiteralExpr e -> e.asString();
+            case EnclosedExpr e -> evaluate(e.getInner(), visiting);
+            case NameExpr e -> FieldCache.resolveField(e) instanceof ResolvedFieldDeclaration field ? of(field, visiting) : null;
+            case FieldAccessExpr e -> FieldCache.resolveField(e) instanceof ResolvedFieldDeclaration field ? of(field, visiting) : null;
+            case CastExpr e -> {
+                var value = evaluate(e.getExpression(), visiting);
+                var type = e.getType().resolve();
+                yield value == null || !type.isPrimitive() && !isString(type) ? null : convert(value, type);
+            }
+            case ConditionalExpr e -> {
+                var condition = evaluate(e.getCondition(), visiting);
+                var then = evaluate(e.getThenExpr(), visiting);
+                var otherwise = evaluate(e.getElseExpr(), visiting);
+                if (!(condition instanceof Boolean c) || then == null || otherwise == null) yield null;
+                yield convert(c ? then : otherwise, e.calculateResolvedType());
+            }
+            case UnaryExpr e -> unary(e.getOperator(), evaluate(e.getExpression(), visiting));
+            case BinaryExpr e -> {
+                var left = evaluate(e.getLeft(), visiting);
+                var right = evaluate(e.getRight(), visiting);
+                yield left == null || right == null ? null : binary(e.getOperator(), left, right);
+            }
+            default -> null;
+        };
+    }
+
+    private static @Nullable Object unary(UnaryExpr.Operator operator, @Nullable Object value) {
+        if (value instanceof Boolean b) return operator == UnaryExpr.Operator.LOGICAL_COMPLEMENT ? !b : null;
+        if (value == null || value instanceof String) return null;
+
+        var promoted = promote(value);
+        return switch (operator) {
+            case PLUS -> promoted;
+            case MINUS -> switch (promoted) {
+                case Integer i -> -i;
+                case Long l -> -l;
+                case Float f -> -f;
+                default -> -(Double) promoted;
+            };
+            case BITWISE_COMPLEMENT -> switch (promoted) {
+                case Integer i -> ~i;
+                case Long l -> ~l;
+                default -> null;
+            };
+            default -> null;
+        };
+    }
+
+    private static @Nullable Object binary(BinaryExpr.Operator operator, Object left, Object right) {
+        if (operator == BinaryExpr.Operator.PLUS && (left instanceof String || right instanceof String))
+            return string(left) + string(right);
+        if (left instanceof String || right instanceof String) {
+            return switch (operator) {
+                case EQUALS -> left.equals(right);  // Constant strings are interned
+                case NOT_EQUALS -> !left.equals(right);
+                default -> null;
+            };
+        }
+        if (left instanceof Boolean l && right instanceof Boolean r) {
+            return switch (operator) {
+                case AND, BINARY_AND -> l & r;
+                case OR, BINARY_OR -> l | r;
+                case XOR -> l ^ r;
+                case EQUALS -> l == r;
+                case NOT_EQUALS -> l != r;
+                default -> null;
+            };
+        }
+        if (left instanceof Boolean || right instanceof Boolean) return null;
+
+        if (operator == BinaryExpr.Operator.LEFT_SHIFT || operator == BinaryExpr.Operator.SIGNED_RIGHT_SHIFT
+                || operator == BinaryExpr.Operator.UNSIGNED_RIGHT_SHIFT) {
+            var value = promote(left);
+            var shift = promote(right);
+            if (!(shift instanceof Integer || shift instanceof Long)) return null;
+            int distance = ((Number) shift).intValue();
+            return switch (value) {
+                case Integer i -> switch (operator) {
+                    case LEFT_SHIFT -> i << distance;
+                    case SIGNED_RIGHT_SHIFT -> i >> distance;
+                    default -> i >>> distance;
+                };
+                case Long l -> switch (operator) {
+                    case LEFT_SHIFT -> l << distance;
+                    case SIGNED_RIGHT_SHIFT -> l >> distance;
+                    default -> l >>> distance;
+                };
+                default -> null;
+            };
+        }
+
+        // Binary numeric promotion
+        var l = promote(left);
+        var r = promote(right);
+        if (l instanceof Double || r instanceof Double) {
+            double a = ((Number) l).doubleValue(), b = ((Number) r).doubleValue();
+            return switch (operator) {
+                case PLUS -> a + b;
+                case MINUS -> a - b;
+                case MULTIPLY -> a * b;
+                case DIVIDE -> a / b;
+                case REMAINDER -> a % b;
+                default -> compare(operator, Double.compare(a, b), a == b, Double.isNaN(a) || Double.isNaN(b));
+            };
+        }
+        if (l instanceof Float || r instanceof Float) {
+            float a = ((Number) l).floatValue(), b = ((Number) r).floatValue();
+            return switch (operator) {
+                case PLUS -> a + b;
+                case MINUS -> a - b;
+                case MULTIPLY -> a * b;
+                case DIVIDE -> a / b;
+                case REMAINDER -> a % b;
+                default -> compare(operator, Float.compare(a, b), a == b, Float.isNaN(a) || Float.isNaN(b));
+            };
+        }
+        if (l instanceof Long || r instanceof Long) {
+            long a = ((Number) l).longValue(), b = ((Number) r).longValue();
+            if (b == 0 && (operator == BinaryExpr.Operator.DIVIDE || operator == BinaryExpr.Operator.REMAINDER)) return null;
+            return switch (operator) {
+                case PLUS -> a + b;
+                case MINUS -> a - b;
+                case MULTIPLY -> a * b;
+                case DIVIDE -> a / b;
+                case REMAINDER -> a % b;
+                case BINARY_AND -> a & b;
+                case BINARY_OR -> a | b;
+                case XOR -> a ^ b;
+                default -> compare(operator, Long.compare(a, b), a == b, false);
+            };
+        }
+        int a = ((Number) l).intValue(), b = ((Number) r).intValue();
+        if (b == 0 && (operator == BinaryExpr.Operator.DIVIDE || operator == BinaryExpr.Operator.REMAINDER)) return null;
+        return switch (operator) {
+            case PLUS -> a + b;
+            case MINUS -> a - b;
+            case MULTIPLY -> a * b;
+            case DIVIDE -> a / b;
+            case REMAINDER -> a % b;
+            case BINARY_AND -> a & b;
+            case BINARY_OR -> a | b;
+            case XOR -> a ^ b;
+            default -> compare(operator, Integer.compare(a, b), a == b, false);
+        };
+    }
+
+    // Comparisons with NaN are false, except for !=
+    private static @Nullable Object compare(BinaryExpr.Operator operator, int comparison, boolean equal, boolean nan) {
+        return switch (operator) {
+            case EQUALS -> equal;
+            case NOT_EQUALS -> !equal;
+            case LESS -> !nan && comparison < 0;
+            case LESS_EQUALS -> !nan && comparison <= 0;
+            case GREATER -> !nan && comparison > 0;
+            case GREATER_EQUALS -> !nan && comparison >= 0;
+            default -> null;
+        };
+    }
+
+    // Unary numeric promotion, chars are numbers as well
+    private static Object promote(Object value) {
+        return switch (value) {
+            case Character c -> (int) c;
+            case Byte b -> (int) b;
+            case Short s -> (int) s;
+            default -> value;
+        };
+    }
+
+    private static String string(Object value) {
+        return value instanceof Character c ? String.valueOf(c.charValue()) : String.valueOf(value);
+    }
+
+    /**
+     * Converts the value to the type, as assignments and casts of constants do
+     */
+    private static @Nullable Object convert(Object value, ResolvedType type) {
+        if (isString(type)) return value instanceof String ? value : null;
+        if (!type.isPrimitive() || value instanceof String) return null;
+
+        var name = type.asPrimitive().describe();
+        if (value instanceof Boolean) return name.equals("boolean") ? value : null;
+        if (name.equals("boolean")) return value instanceof Integer i ? i != 0 : null;     // From class files
+
+        var number = value instanceof Character c ? (Number) (int) c : (Number) promote(value);
+        return switch (name) {
+            case "byte" -> number.byteValue();
+            case "short" -> number.shortValue();
+            case "char" -> (char) number.intValue();
+            case "int" -> number.intValue();
+            case "long" -> number.longValue();
+            case "float" -> number.floatValue();
+            default -> number.doubleValue();
+        };
+    }
+
+    private static boolean isString(ResolvedType type) {
+        return type.isReferenceType() && type.asReferenceType().getQualifiedName().equals("java.lang.String");
+    }
+}
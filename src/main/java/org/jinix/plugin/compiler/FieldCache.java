@@ -0,0 +1,124 @@
+package org.jinix.plugin.compiler;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.FieldDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.DoStmt;
+import com.github.javaparser.ast.stmt.ForEachStmt;
+import com.github.javaparser.ast.stmt.ForStmt;
+import com.github.javaparser.ast.stmt.WhileStmt;
+import com.github.javaparser.resolution.declarations.ResolvedFieldDeclaration;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Decides which fields of a method are loaded into C++ locals once, instead of going through JNI on every access.
+ * A field is cached if it is primitive, not volatile, accessed in a loop or more than once, and is never accessed
+ * through another object, which could be an alias of {@code this}
+ */
+class FieldCache {
+    private final Map<String, CachedField> fields = new LinkedHashMap<>();
+
+    public FieldCache(MethodDeclaration method, boolean enabled) {
+        if (!enabled) return;
+
+        Set<String> aliased = new HashSet<>();
+        Map<String, Integer> accessCount = new HashMap<>();
+        Map<String, CachedField> candidates = new LinkedHashMap<>();
+
+        for (Expression expression : method.findAll(Expression.class, e -> e.isNameExpr() || e.isFieldAccessExpr())) {
+            var field = resolveField(expression);
+            if (field == null || field.getType().isPrimitive() && ConstantValues.of(field) != null) continue;   // Inlined
+
+            var key = key(field);
+            if (expression instanceof FieldAccessExpr access && !field.isStatic() && !(access.getScope() instanceof ThisExpr)) {
+                aliased.add(key);
+                continue;
+            }
+            if (!field.getType().isPrimitive() || field.isVolatile()) continue;
+
+            var candidate = candidates.computeIfAbsent(key, k -> new CachedField(field));
+            candidate.written |= isWritten(expression);
+            candidate.inLoop |= isInLoop(expression, method);
+            accessCount.merge(key, 1, Integer::sum);
+        }
+
+        candidates.forEach((key, candidate) -> {
+            if (!aliased.contains(key) && (candidate.inLoop || accessCount.get(key) > 1))
+                fields.put(key, candidate);
+        });
+    }
+
+    public boolean isCached(ResolvedFieldDeclaration field) {
+        return fields.containsKey(key(field));
+    }
+
+    /**
+     * Returns the field if the expression is an access of a cached field
+     */
+    public @Nullable ResolvedFieldDeclaration cachedField(Expression expression) {
+        if (!expression.isNameExpr() && !expression.isFieldAccessExpr()) return null;
+
+        var field = resolveField(expression);
+        return field != null && isCached(field) ? field : null;
+    }
+
+    public Collection<CachedField> cachedFields() {
+        return fields.values();
+    }
+
+    public boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    static @Nullable ResolvedFieldDeclaration resolveField(Expression expression) {
+        try {
+            var resolved = expression instanceof NameExpr name ? name.resolve() : expression.asFieldAccessExpr().resolve();
+            return resolved instanceof ResolvedFieldDeclaration field ? field : null;
+        } catch (RuntimeException e) {    // Class names, array lengths and other unresolvable scopes
+            return null;
+        }
+    }
+
+    private static boolean isWritten(Expression expression) {
+        var parent = expression.getParentNode().orElse(null);
+        return parent instanceof AssignExpr assign && assign.getTarget() == expression
+                || parent instanceof UnaryExpr unary && (unary.getOperator().name().endsWith("INCREMENT")
+                    || unary.getOperator().name().endsWith("DECREMENT"));
+    }
+
+    private static boolean isInLoop(Node node, MethodDeclaration method) {
+        for (Node n = node; n != null && n != method; n = n.getParentNode().orElse(null)) {
+            if (n instanceof ForStmt || n instanceof ForEachStmt || n instanceof WhileStmt || n instanceof DoStmt)
+                return true;
+        }
+        return false;
+    }
+
+    private static String key(ResolvedFieldDeclaration field) {
+        return field.declaringType().getQualifiedName() + "." + field.getName();
+    }
+
+    public static class CachedField {
+        public final ResolvedFieldDeclaration field;
+        private boolean written;
+        private boolean inLoop;
+
+        private CachedField(ResolvedFieldDeclaration field) {
+            this.field = field;
+        }
+
+        public boolean isWritten() {
+            return written;
+        }
+
+        /**
+         * Final fields never have to be reloaded after an upcall
+         */
+        public boolean isFinal() {
+            return field.toAst(FieldDeclaration.class).map(FieldDeclaration::isFinal).orElse(false);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package org.jinix.plugin.compiler;
 
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.Parameter;
-import org.jinix.Jinix;
 
 import java.io.File;
 import java.io.IOException;
@@ -15,8 +14,35 @@ public class HeaderGenerator {
     private StringBuilder result;
     private Map<String, List<JniFunctionDeclaration>> declarations;
 
-    public static String jinixInitDeclaration() {
-        return "JNIEXPORT void JNICALL Java_" + Jinix.class.getName().replace('.', '_') + "_init(JNIEnv *);";
+    public static String onLoadDeclaration() {
+        return "JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *, void *);";
+    }
+
+    /**
+     * Native methods are bound with RegisterNatives, so function names only have to be unique in the library,
+     * which also allows overloaded methods
+     */
+    public static String jniFunctionName(MethodDeclaration method) {
+        return "jinix_native_" + CPPTranspiler.uniqueMethodIdName(method.resolve());
+    }
+
+    /**
+     * Function of the batch overload of a method, bound with RegisterNatives as well
+     */
+    public static String batchFunctionName(MethodDeclaration method) {
+        return "jinix_batch_" + CPPTranspiler.uniqueMethodIdName(method.resolve());
+    }
+
+    /**
+     * Downcall functions are looked up by name, which is derived from the JVM descriptor so that the bytecode
+     * transformer can compute it as well
+     */
+    public static String downcallFunctionName(String className, String methodName, String descriptor) {
+        return "jinix_downcall_" + (className + "_" + methodName + "_" + descriptor).replaceAll("[^A-Za-z0-9]", "_");
+    }
+
+    public static String downcallFunctionName(String className, MethodDeclaration method) {
+        return downcallFunctionName(className, method.getNameAsString(), CPPTranspiler.getMethodSignature(method.resolve()));
     }
 
     private void generateDeclarations(String originalClassName, Collection<MethodDeclaration> methods) {
@@ -25,11 +51,15 @@ public class HeaderGenerator {
         // Generate methods
         for (MethodDeclaration method : methods) {
             var returnType = jniType(method.getType());
-            //TODO support for overloaded methods,
-            // see https://docs.oracle.com/en/java/javase/11/docs/specs/jni/design.html
-            var jniName = "Java_" + className + "_" + method.getName();
+            if (Transpiler.isBatch(method)) generateBatchDeclaration(method, returnType);
+            if (Transpiler.isDowncall(method)) {
+                generateDowncallDeclaration(originalClassName, method, returnType);
+                continue;
+            }
+            var jniName = jniFunctionName(method);
 
-            result.append("JNIEXPORT ").append(returnType).append(" JNICALL ").append(jniName).append("(JNIEnv *, jobject");
+            // Not exported, only JNI_OnLoad is visible outside the library
+            result.append(returnType).append(" JNICALL ").append(jniName).append("(JNIEnv *, jobject");
 
             var declaration = new JniFunctionDeclaration(method.getName().asString(), jniName, new ArrayList<>(), returnType);
             for (Parameter parameter : method.getParameters()) {
@@ -43,6 +73,33 @@ public class HeaderGenerator {
         }
     }
 
+    // Takes an array for each parameter and the array of results
+    private void generateBatchDeclaration(MethodDeclaration method, String returnType) {
+        result.append("void JNICALL ").append(batchFunctionName(method)).append("(JNIEnv *, jobject");
+        method.getParameters().forEach(p -> result.append(", ").append(jniType(p.getType())).append("Array"));
+        result.append(", ").append(returnType).append("Array);\n\n");
+    }
+
+    private void generateDowncallDeclaration(String className, MethodDeclaration method, String returnType) {
+        var name = downcallFunctionName(className, method);
+        result.append("JNIEXPORT ").append(returnType).append(" ").append(name).append("(");
+
+        var declaration = new JniFunctionDeclaration(method.getName().asString(), name, new ArrayList<>(), returnType);
+        StringJoiner parameters = new StringJoiner(", ");
+        for (Parameter parameter : method.getParameters()) {
+            declaration.parameters.add(parameter);
+            var type = parameter.getType();
+            if (type.isArrayType()) {   // Elements and length
+                parameters.add("j" + type.asArrayType().getComponentType().asString() + " *").add("jint");
+            } else {
+                parameters.add(jniType(type));
+            }
+        }
+
+        declarations.computeIfAbsent(className, k -> new ArrayList<>()).add(declaration);
+        result.append(parameters).append(");\n\n");
+    }
+
     public Map<String, List<JniFunctionDeclaration>> generateHeader(Map<String, List<MethodDeclaration>> parsedMethods, File destination) {
         this.result = new StringBuilder();
         this.declarations = new HashMap<>();
@@ -60,7 +117,7 @@ public class HeaderGenerator {
         
         """);
 
-        result.append(jinixInitDeclaration()).append("\n");
+        result.append(onLoadDeclaration()).append("\n");
         parsedMethods.forEach(this::generateDeclarations);
 
         // Close extern "C"
@@ -2,6 +2,8 @@ package org.jinix.plugin.compiler;
 
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.resolution.TypeSolver;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
 import org.jinix.plugin.MethodSourceReport;
@@ -10,75 +12,95 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Map;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public class MethodNativizer {
+    /**
+     * Java frames of native functions, which {@link org.jinix.Symbolizer} replaces their symbols with
+     */
+    public static final String SYMBOLS_NAME = "jinix.symbols";
+
     private final TypeSolver typeSolver;
-    private File headerFile;
-    private File transpiledSourceFile;
+    private final Map<String, CompilationUnit> parsedSources;
+    private boolean metrics;
 
-    public MethodNativizer(TypeSolver typeSolver) {
+    /**
+     * @param parsedSources compilation units by their source, which can be reused as long as the type solver is
+     */
+    public MethodNativizer(TypeSolver typeSolver, Map<String, CompilationUnit> parsedSources) {
         this.typeSolver = typeSolver;
+        this.parsedSources = parsedSources;
     }
 
-    public void nativizeReported() {
-        var report = MethodSourceReport.retrieveReport();
-        var transpiler = new CPPTranspiler(typeSolver, report);
+    /**
+     * Instruments nativized methods with counters exported by org.jinix.JinixMetrics
+     */
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
 
-        var temp = prepareTempDirectory();
+    /**
+     * Transpiles reported methods, read from the source directories, into sources of the native library, which are compiled by {@link NativeCompiler}
+     *
+     * @param directory emptied first
+     * @return estimated costs of nativized methods by qualified name, which are also written to profitability.json
+     */
+    public Map<String, NativizationCost> transpile(MethodSourceReport report, Collection<File> sourceDirectories, File directory) {
+        var transpiler = new CPPTranspiler(typeSolver, report);
+        transpiler.setMetrics(metrics);
+        transpiler.setLineDirectives(true);
+        prepareDirectory(directory);
 
         var parser = new JavaParser(new ParserConfiguration()
                 .setSymbolResolver(new JavaSymbolSolver(typeSolver))
                 .setLanguageLevel(ParserConfiguration.LanguageLevel.JAVA_21));  //TODO detect automatically
-        var parsedMethods = report.getClassData().values().stream().flatMap(c -> c.nativizeMethods.stream().map(m -> Map.entry(c.name, m)))
-                .collect(Collectors.groupingBy(Map.Entry::getKey,
-                        Collectors.mapping(m -> transpiler.parseMethod(m.getKey(), m.getValue(), parser), Collectors.toList())));
+        Map<String, List<MethodDeclaration>> parsedMethods = new HashMap<>();
+        for (String className : report.getClassNames()) {
+            var classData = report.getClassData(className);
+            var source = classData.readSource(sourceDirectories);
+            parsedMethods.put(className, classData.methods.stream()
+                    .map(m -> transpiler.parseMethod(className, m, source, parser, parsedSources)).toList());
+        }
 
-        this.headerFile = new File(temp, "jinix.h");
-        var functionDeclarations = new HeaderGenerator().generateHeader(parsedMethods, this.headerFile);
+        var functionDeclarations = new HeaderGenerator().generateHeader(parsedMethods, new File(directory, NativeCompiler.HEADER_NAME));
 
-        this.transpiledSourceFile = new File(temp, "jinix." + transpiler.getFileExtension());
-        transpiler.transpile(functionDeclarations, parsedMethods, transpiledSourceFile);
+        transpiler.transpile(functionDeclarations, parsedMethods, directory);
+        writeProfitabilityReport(transpiler.costs, new File(directory, "profitability.json"));
+        writeSymbols(transpiler.symbols, new File(directory, SYMBOLS_NAME));
+        return transpiler.costs;
+    }
 
-        compileAndLink();
+    // One function per line, with its symbol and frame separated by a tab
+    private static void writeSymbols(Map<String, String> symbols, File destination) {
+        try {
+            Files.write(destination.toPath(), symbols.entrySet().stream().map(e -> e.getKey() + "\t" + e.getValue()).toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private void compileAndLink() {
+    private static void writeProfitabilityReport(Map<String, NativizationCost> costs, File destination) {
+        var entries = costs.entrySet().stream().map(e -> {
+            var name = e.getKey();
+            return "  " + e.getValue().toJson(name.substring(0, name.lastIndexOf('.')), name.substring(name.lastIndexOf('.') + 1));
+        }).collect(Collectors.joining(",\n", "[\n", "\n]\n"));
+
         try {
-            String libName = "libjinix.so";
-            ProcessBuilder pb = new ProcessBuilder(
-                    "gcc",
-                    "-shared",
-                    "-fPIC",
-                    "-I" + System.getProperty("java.home") + "/include",
-                    "-I" + System.getProperty("java.home") + "/include/linux",  //TODO make cross platform
-                    transpiledSourceFile.getAbsolutePath(),
-                    "-o",
-                    new File(transpiledSourceFile.getParentFile(), libName).getAbsolutePath()
-            );
-            pb.redirectOutput(new File("out.txt"));
-            pb.redirectError(new File("err.txt"));
-            Process process = pb.start();
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {
-                throw new RuntimeException("Compilation failed with exit code " + exitCode);
-            }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Failed to compile and link JNI library", e);
+            Files.writeString(destination.toPath(), entries);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    private static File prepareTempDirectory() {
-        var temp = new File(System.getProperty("user.dir") + "/.jinix/");
-        temp.mkdir();
+    static void prepareDirectory(File directory) {
+        directory.mkdirs();
 
-        try(var stream = Files.walk(temp.toPath())) {
-            stream.map(Path::toFile)
-                  .filter(f -> !f.equals(temp))
+        try(var stream = Files.walk(directory.toPath())) {
+            stream.sorted(Comparator.reverseOrder())
+                  .map(Path::toFile)
+                  .filter(f -> !f.equals(directory))
                   .forEach(File::delete);
         } catch (IOException ignored) {}
-
-        return temp;
     }
 }
@@ -0,0 +1,161 @@
+package org.jinix.plugin.compiler;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles sources written by {@link MethodNativizer} into the native library
+ */
+public class NativeCompiler {
+    public static final String LIBRARY_NAME = "libjinix.so";
+    public static final String DEBUG_INFO_NAME = LIBRARY_NAME + ".debug";
+    static final String HEADER_NAME = "jinix.h";
+
+    private final CompilerOptions options;
+    private final @Nullable File profileDirectory;
+    private final @Nullable ObjectCache cache;
+    private boolean headerPrecompiled;
+
+    /**
+     * @param profileDirectory where profiles are written or read, needed if {@link CompilerOptions#profile()} is not OFF
+     * @param cache compiled objects shared with other builds, or null to always compile
+     */
+    public NativeCompiler(CompilerOptions options, @Nullable File profileDirectory, @Nullable ObjectCache cache) {
+        this.options = options;
+        this.profileDirectory = profileDirectory;
+        this.cache = cache;
+    }
+
+    /**
+     * Compiles translation units in the directory concurrently, or restores them from the cache, and links them once.
+     * Objects, logs, the library and its separate debug info are written next to the sources
+     *
+     * @return the library
+     */
+    public File compileAndLink(File directory) {
+        var units = directory.listFiles((dir, name) -> name.endsWith(".cpp"));
+        if (units == null || units.length == 0) throw new IllegalArgumentException("No sources to compile in " + directory);
+        Arrays.sort(units);
+        var sources = new Transpiler.Sources(new File(directory, Transpiler.SHARED_NAME + ".h"), List.of(units));
+
+        var threads = Math.max(1, Math.min(sources.units().size(), Runtime.getRuntime().availableProcessors()));
+        var pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> compilations = new ArrayList<>();
+            for (File unit : sources.units()) {
+                compilations.add(pool.submit(() -> compile(sources, unit, directory)));
+            }
+            for (Future<?> compilation : compilations) {
+                compilation.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Failed to compile and link JNI library", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        var link = compileCommand(directory, "-shared");
+        sources.units().forEach(unit -> link.add(objectName(unit)));
+        link.addAll(List.of(
+                "-o",
+                LIBRARY_NAME,
+                "-Wl,--build-id",   // Matches the library with its debug info
+                "-Wl,--as-needed",
+                "-lstdc++"  // Destructors of native arrays need C++ runtime for unwinding
+        ));
+        run(directory, LIBRARY_NAME, link);
+        if (!options.debug() && options.separateDebugInfo()) separateDebugInfo(directory);
+        return new File(directory, LIBRARY_NAME);
+    }
+
+    private void compile(Transpiler.Sources sources, File unit, File directory) {
+        var object = new File(directory, objectName(unit));
+        var command = compileCommand(directory, "-c", unit.getName(), "-o", object.getName());
+
+        String key = null;
+        if (cache != null) {
+            List<File> inputs = new ArrayList<>(List.of(unit, sources.sharedHeader(), new File(directory, HEADER_NAME)));
+            if (options.profile() == CompilerOptions.Profile.USE)
+                inputs.add(new File(profileDirectory, object.getName().replace(".o", ".gcda")));
+            // The prefix path is the only project specific argument, and does not change the object
+            key = cache.key(command.stream().filter(a -> !a.startsWith("-fprofile-prefix-path=")).toList(), inputs);
+            if (cache.restore(key, object)) return;
+        }
+
+        precompileHeader(sources.sharedHeader(), directory);
+        run(directory, unit.getName(), command);
+        if (cache != null) cache.store(key, object);
+    }
+
+    /**
+     * Moves debug info of the library to {@link #DEBUG_INFO_NAME}, which debuggers find through its debug link,
+     * and perf once it is added with {@code perf buildid-cache --add}
+     */
+    private static void separateDebugInfo(File directory) {
+        //TODO make cross platform
+        run(directory, DEBUG_INFO_NAME, List.of("objcopy", "--only-keep-debug", LIBRARY_NAME, DEBUG_INFO_NAME));
+        run(directory, "strip", List.of("objcopy", "--strip-debug", "--add-gnu-debuglink=" + DEBUG_INFO_NAME, LIBRARY_NAME));
+    }
+
+    // Only needed if a unit has to be compiled
+    private synchronized void precompileHeader(File header, File directory) {
+        if (headerPrecompiled) return;
+        run(directory, header.getName(), compileCommand(directory, "-x", "c++-header", header.getName(), "-o", header.getName() + ".gch"));
+        headerPrecompiled = true;
+    }
+
+    // Run from the directory of sources, so profile names do not depend on the project location
+    private List<String> compileCommand(File directory, String... arguments) {
+        List<String> command = new ArrayList<>(List.of(
+                options.compiler(),
+                "-fPIC",
+                "-fvisibility=hidden",
+                "-fopenmp",     // Only parallel loops use it, libgomp is not linked otherwise
+                "-I" + System.getProperty("java.home") + "/include",
+                "-I" + System.getProperty("java.home") + "/include/linux"  //TODO make cross platform
+        ));
+        command.addAll(options.flags(profilePath(directory)));
+        if (options.profile() != CompilerOptions.Profile.OFF)
+            command.add("-fprofile-prefix-path=" + directory.getAbsolutePath());
+        command.addAll(List.of(arguments));
+        return command;
+    }
+
+    // Relative to the sources when reading profiles, so objects can be cached. The instrumented library resolves it
+    // against the working directory of the training run, so there it stays absolute
+    private @Nullable String profilePath(File directory) {
+        if (profileDirectory == null) return null;
+        if (options.profile() == CompilerOptions.Profile.GENERATE) return profileDirectory.getAbsolutePath();
+        return directory.getAbsoluteFile().toPath().relativize(profileDirectory.getAbsoluteFile().toPath()).toString();
+    }
+
+    private static String objectName(File unit) {
+        return unit.getName().substring(0, unit.getName().lastIndexOf('.')) + ".o";
+    }
+
+    private static void run(File directory, String name, List<String> command) {
+        try {
+            var log = new File(directory, name + ".log");
+            var process = new ProcessBuilder(command).directory(directory)
+                    .redirectErrorStream(true).redirectOutput(log).start();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new RuntimeException("Compilation of " + name + " failed with exit code " + exitCode + ":\n"
+                        + Files.readString(log.toPath()));
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to compile and link JNI library", e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.jinix.plugin.compiler;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * JNI calls made by a transpiled method, split into calls made once per call and calls made in every loop iteration.
+ * Each of them costs much more than the same operation in JIT compiled code, so it is used to flag methods
+ * that are likely slower nativized
+ */
+public class NativizationCost {
+    public enum Kind {
+        FIELD_GET, FIELD_SET, UPCALL, ARRAY, OBJECT, OTHER;
+
+        static Kind of(String jniFunction) {
+            if (jniFunction.startsWith("Call")) return UPCALL;
+            if (jniFunction.endsWith("Field")) return jniFunction.startsWith("Get") ? FIELD_GET : FIELD_SET;
+            if (jniFunction.contains("Array")) return ARRAY;
+            if (jniFunction.startsWith("New") || jniFunction.startsWith("Alloc")) return OBJECT;
+            return OTHER;
+        }
+
+        String jsonName() {
+            var camel = Arrays.stream(name().toLowerCase().split("_"))
+                    .map(w -> Character.toUpperCase(w.charAt(0)) + w.substring(1)).collect(Collectors.joining());
+            return Character.toLowerCase(camel.charAt(0)) + camel.substring(1);
+        }
+    }
+
+    private final Map<Kind, Integer> perCall = new EnumMap<>(Kind.class);
+    private final Map<Kind, Integer> perIteration = new EnumMap<>(Kind.class);
+    private final Set<String> classes = new TreeSet<>();    // Looked up with FindClass on the first call
+    private final boolean downcall;
+    private boolean hasLoops;
+
+    public NativizationCost(boolean downcall) {
+        this.downcall = downcall;
+    }
+
+    void record(String jniFunction, boolean inLoop) {
+        if (jniFunction.endsWith("ID")) return;     // Looked up once, on initialization
+        add(Kind.of(jniFunction), inLoop, 1);
+    }
+
+    void add(Kind kind, boolean inLoop, int count) {
+        (inLoop ? perIteration : perCall).merge(kind, count, Integer::sum);
+    }
+
+    void addClass(String classVar) {
+        classes.add(classVar);
+    }
+
+    void markLoop() {
+        hasLoops = true;
+    }
+
+    /**
+     * Adds calls of a function called directly. All of them are counted once, since its loop counts are unknown
+     */
+    void addCallee(NativizationCost callee, boolean inLoop) {
+        callee.perCall.forEach((kind, count) -> add(kind, inLoop, count));
+        callee.perIteration.forEach((kind, count) -> add(kind, inLoop, count));
+        classes.addAll(callee.classes);
+        hasLoops |= callee.hasLoops;
+    }
+
+    public int callsPerCall() {
+        return perCall.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    public int callsPerIteration() {
+        return perIteration.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Reasons why the method is likely slower than JIT compiled Java, empty if it is likely profitable
+     */
+    public List<String> warnings() {
+        List<String> warnings = new ArrayList<>();
+        if (callsPerIteration() > 0)
+            warnings.add(callsPerIteration() + " JNI calls in every loop iteration (" + describe(perIteration) + ")");
+        if (!hasLoops && !downcall)
+            warnings.add("no loops, the JNI transition likely costs more than the method itself");
+        return warnings;
+    }
+
+    public boolean isProfitable() {
+        return warnings().isEmpty();
+    }
+
+    public String summary() {
+        var result = "%d JNI calls per call, %d per loop iteration".formatted(callsPerCall(), callsPerIteration());
+        return isProfitable() ? result : result + ", likely slower than the JIT: " + String.join("; ", warnings());
+    }
+
+    String toJson(String className, String methodName) {
+        return """
+                {"class": %s, "method": %s, "downcall": %b, "hasLoops": %b, "findClass": %d, \
+                "perCall": %s, "perIteration": %s, "profitable": %b, "warnings": [%s]}"""
+                .formatted(quote(className), quote(methodName), downcall, hasLoops, classes.size(),
+                        countsJson(perCall), countsJson(perIteration), isProfitable(),
+                        warnings().stream().map(NativizationCost::quote).collect(Collectors.joining(", ")));
+    }
+
+    private static String countsJson(Map<Kind, Integer> counts) {
+        return Arrays.stream(Kind.values()).map(k -> quote(k.jsonName()) + ": " + counts.getOrDefault(k, 0))
+                .collect(Collectors.joining(", ", "{", "}"));
+    }
+
+    private static String describe(Map<Kind, Integer> counts) {
+        return counts.entrySet().stream().map(e -> e.getKey().jsonName() + ": " + e.getValue()).collect(Collectors.joining(", "));
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,187 @@
+package org.jinix.plugin.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Compiled objects by the hash of everything that affects them: the compiler version, its arguments and the contents of
+ * the translation unit and the headers it includes. The directory can be shared by any number of projects and builds.
+ * Objects are touched when they are used, and the least recently used ones are evicted once the cache is over its size
+ */
+public class ObjectCache {
+    private static final String STATISTICS_FILE = "statistics";
+    // File locks are held by the whole JVM, so builds in the same Gradle daemon are serialized by these first
+    private static final Map<Path, Object> DIRECTORY_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxSize;
+    private final String compilerVersion;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param compilerVersion output of {@code --version} of the compiler the objects are compiled with
+     */
+    public ObjectCache(File directory, long maxSize, String compilerVersion) {
+        this.directory = directory.toPath();
+        this.maxSize = maxSize;
+        this.compilerVersion = compilerVersion;
+    }
+
+    /**
+     * @param inputs the translation unit, the headers it includes and its profile, if any. Missing files are skipped
+     */
+    String key(List<String> command, List<File> inputs) {
+        var digest = sha256();
+        update(digest, compilerVersion);
+        command.forEach(argument -> update(digest, argument));
+        for (File input : inputs) {
+            if (!input.exists()) continue;
+            update(digest, input.getName());
+            try {
+                digest.update(Files.readAllBytes(input.toPath()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Copies the cached object to the destination
+     *
+     * @return false on a miss
+     */
+    boolean restore(String key, File destination) {
+        var cached = path(key);
+        try {
+            Files.copy(cached, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            return true;
+        } catch (IOException e) {    // Not cached, or evicted by another build meanwhile
+            misses.incrementAndGet();
+            return false;
+        }
+    }
+
+    void store(String key, File object) {
+        var cached = path(key);
+        try {
+            Files.createDirectories(cached.getParent());
+            // Other builds never see a partially written object
+            var temp = Files.createTempFile(cached.getParent(), key, ".tmp");
+            Files.copy(object.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ignored) {}   // Only slows down the next build
+    }
+
+    /**
+     * Adds hits and misses of this build to the totals and evicts least recently used objects over the size limit
+     *
+     * @return statistics of this build and all builds using the cache
+     */
+    public Statistics finish() {
+        try {
+            Files.createDirectories(directory);
+            synchronized (DIRECTORY_LOCKS.computeIfAbsent(directory.toRealPath(), k -> new Object())) {
+                return updateStatistics();
+            }
+        } catch (IOException | NumberFormatException e) {
+            return new Statistics(hits.get(), misses.get(), hits.get(), misses.get());
+        }
+    }
+
+    private Statistics updateStatistics() throws IOException {
+        try (var channel = FileChannel.open(directory.resolve(STATISTICS_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             var ignored = lock(channel)) {
+            var buffer = ByteBuffer.allocate((int) channel.size());
+            channel.read(buffer, 0);
+            var totals = new String(buffer.array(), StandardCharsets.UTF_8).trim().split(" ");
+            long totalHits = hits.get() + (totals.length == 2 ? Long.parseLong(totals[0]) : 0);
+            long totalMisses = misses.get() + (totals.length == 2 ? Long.parseLong(totals[1]) : 0);
+
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap((totalHits + " " + totalMisses).getBytes(StandardCharsets.UTF_8)), 0);
+            evict();
+            return new Statistics(hits.get(), misses.get(), totalHits, totalMisses);
+        }
+    }
+
+    private static FileLock lock(FileChannel channel) throws IOException {
+        while (true) {
+            try {
+                return channel.lock();
+            } catch (OverlappingFileLockException e) {  // Held by this class loaded by another class loader
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Path> objects;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            objects = stream.filter(p -> p.toString().endsWith(".o")).toList();
+        }
+
+        record Entry(Path path, long size, long lastUsed) {}
+        List<Entry> entries = new ArrayList<>();
+        long size = 0;
+        for (Path object : objects) {
+            try {
+                var attributes = Files.readAttributes(object, BasicFileAttributes.class);
+                entries.add(new Entry(object, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                size += attributes.size();
+            } catch (IOException ignored) {}    // Evicted by another build
+        }
+        if (size <= maxSize) return;
+
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+        var target = maxSize * 9 / 10;  // Not evicting again on the next build
+        for (Entry entry : entries) {
+            if (size <= target) break;
+            Files.deleteIfExists(entry.path());
+            size -= entry.size();
+        }
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".o");
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public record Statistics(long hits, long misses, long totalHits, long totalMisses) {
+        @Override
+        public String toString() {
+            return "%d hits, %d misses (%d hits, %d misses in total)".formatted(hits, misses, totalHits, totalMisses);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.jinix.plugin.compiler;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.*;
+import com.github.javaparser.ast.type.Type;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Decides if iterations of a counted loop can be shared between OpenMP threads. Iterations are independent if
+ * variables declared outside the loop are only read, except for reductions like {@code sum += x}, and shared arrays
+ * are only written at the index of the loop variable. Arrays read at other indexes may be aliases of written arrays,
+ * which is checked when the loop starts. Arrays declared in the body are private to the iteration only if they are
+ * created there, others may alias shared arrays. The loop must not call methods or leave early; JNI calls are found
+ * by the transpiler
+ */
+class ParallelLoop {
+    private final String variable;
+    private final Map<String, String> reductions = new LinkedHashMap<>();  // Operators by variable
+    private final Set<String> writtenArrays = new LinkedHashSet<>();
+    private final Set<String> otherIndexArrays = new LinkedHashSet<>();
+    private final Set<String> locals = new HashSet<>();
+    private final Set<String> createdArrays = new HashSet<>();   // Locals initialized with new arrays
+    private boolean descending;
+
+    private ParallelLoop(String variable) {
+        this.variable = variable;
+    }
+
+    /**
+     * Returns the loop if it is in the canonical form of OpenMP and its iterations are independent
+     */
+    static @Nullable ParallelLoop of(ForStmt stmt) {
+        if (stmt.getInitialization().size() != 1 || stmt.getUpdate().size() != 1 || stmt.getCompare().isEmpty()) return null;
+        if (!(stmt.getInitialization().get(0) instanceof VariableDeclarationExpr init) || init.getVariables().size() != 1)
+            return null;
+        var declarator = init.getVariables().get(0);
+        if (declarator.getInitializer().isEmpty() || !List.of("int", "long").contains(declarator.getTypeAsString())) return null;
+
+        var loop = new ParallelLoop(declarator.getNameAsString());
+        for (VariableDeclarator local : stmt.getBody().findAll(VariableDeclarator.class)) {
+            loop.locals.add(local.getNameAsString());
+            if (local.getInitializer().filter(i -> i instanceof ArrayCreationExpr || i instanceof ArrayInitializerExpr).isPresent())
+                loop.createdArrays.add(local.getNameAsString());
+        }
+        if (!loop.analyzeBody(stmt.getBody())) return null;
+
+        var isCounted = stmt.getCompare().get() instanceof BinaryExpr compare && loop.isVariable(compare.getLeft())
+                && List.of(BinaryExpr.Operator.LESS, BinaryExpr.Operator.LESS_EQUALS, BinaryExpr.Operator.GREATER,
+                        BinaryExpr.Operator.GREATER_EQUALS).contains(compare.getOperator())
+                && loop.isInvariant(compare.getRight())
+                && loop.isCountingUpdate(stmt.getUpdate().get(0));
+        loop.descending = isCounted && List.of(BinaryExpr.Operator.GREATER, BinaryExpr.Operator.GREATER_EQUALS)
+                .contains(((BinaryExpr) stmt.getCompare().get()).getOperator());
+        return isCounted ? loop : null;
+    }
+
+    /**
+     * Expression which increases with the iterations in the order Java runs them
+     */
+    String order() {
+        return descending ? "~" + variable : variable;
+    }
+
+    /**
+     * Clauses of the loop, run by the given number of threads
+     */
+    String pragma(String threads) {
+        var result = new StringBuilder("#pragma omp parallel for num_threads(" + threads + ")");
+        reductions.forEach((name, operator) -> result.append(" reduction(").append(operator).append(':').append(name).append(')'));
+
+        var distinct = new StringJoiner(" && ");
+        writtenArrays.forEach(written -> otherIndexArrays.forEach(other ->
+                distinct.add("(void *) %s.elements != (void *) %s.elements".formatted(written, other))));
+        if (distinct.length() > 0) result.append(" if(").append(distinct).append(')');
+        return result.toString();
+    }
+
+    private boolean analyzeBody(Statement body) {
+        for (Node node : body.findAll(Node.class)) {
+            switch (node) {
+                case MethodCallExpr ignored -> { return false; }
+                case ObjectCreationExpr ignored -> { return false; }
+                case LambdaExpr ignored -> { return false; }
+                case MethodReferenceExpr ignored -> { return false; }
+                case ReturnStmt ignored -> { return false; }
+                case ThrowStmt ignored -> { return false; }
+                case TryStmt ignored -> { return false; }
+                case SynchronizedStmt ignored -> { return false; }
+                case LocalClassDeclarationStmt ignored -> { return false; }
+                case LabeledStmt ignored -> { return false; }
+                case ContinueStmt s when s.getLabel().isPresent() -> { return false; }
+                case BreakStmt s when !breaksInside(s, body) -> { return false; }
+                case AssignExpr assign when !isIndependentWrite(assign.getTarget(), reductionOperator(assign)) -> { return false; }
+                case UnaryExpr unary when isModifying(unary) && !isIndependentWrite(unary.getExpression(), "+") -> { return false; }
+                case ArrayAccessExpr access when !isIndependentAccess(access) -> { return false; }
+                default -> {}
+            }
+        }
+
+        // An array written at the loop index and read at others carries values between iterations
+        if (writtenArrays.stream().anyMatch(otherIndexArrays::contains)) return false;
+        // Reduction variables cannot be read, each thread has its own partial result
+        return body.findAll(NameExpr.class, n -> reductions.containsKey(n.getNameAsString())).stream()
+                .allMatch(n -> n.getParentNode().filter(p -> p instanceof AssignExpr a && a.getTarget() == n
+                        || p instanceof UnaryExpr u && isModifying(u)).isPresent());
+    }
+
+    private boolean isIndependentWrite(Expression target, @Nullable String reductionOperator) {
+        if (target instanceof ArrayAccessExpr access && access.getName() instanceof NameExpr array) {
+            var name = array.getNameAsString();
+            if (locals.contains(name)) return createdArrays.contains(name);
+            if (!isVariable(access.getIndex())) return false;
+            writtenArrays.add(name);
+            return true;
+        }
+        if (!(target instanceof NameExpr name)) return false;
+        // Assigning another array would make it an alias
+        if (locals.contains(name.getNameAsString())) return !createdArrays.contains(name.getNameAsString());
+        if (isVariable(name) || FieldCache.resolveField(name) != null || reductionOperator == null) return false;
+        // Results of reductions are only available after the loop
+        if (!(target.getParentNode().flatMap(Node::getParentNode).orElse(null) instanceof ExpressionStmt)) return false;
+
+        var previous = reductions.putIfAbsent(name.getNameAsString(), reductionOperator);
+        return previous == null || previous.equals(reductionOperator);
+    }
+
+    private boolean isIndependentAccess(ArrayAccessExpr access) {
+        if (!(access.getName() instanceof NameExpr array)) return false;
+
+        var name = array.getNameAsString();
+        if (locals.contains(name)) return createdArrays.contains(name);
+        if (!isVariable(access.getIndex())) otherIndexArrays.add(name);
+        return true;
+    }
+
+    private static @Nullable String reductionOperator(AssignExpr assign) {
+        return switch (assign.getOperator()) {
+            case PLUS, MINUS -> "+";
+            case MULTIPLY -> "*";
+            case BINARY_AND -> "&";
+            case BINARY_OR -> "|";
+            case XOR -> "^";
+            default -> null;
+        };
+    }
+
+    private static boolean isModifying(UnaryExpr unary) {
+        return unary.getOperator().name().endsWith("INCREMENT") || unary.getOperator().name().endsWith("DECREMENT");
+    }
+
+    // Break of a loop or switch within the body
+    private static boolean breaksInside(BreakStmt stmt, Statement body) {
+        if (stmt.getLabel().isPresent()) return false;
+        for (Node n = stmt.getParentNode().orElse(null); n != null && n != body; n = n.getParentNode().orElse(null)) {
+            if (n instanceof ForStmt || n instanceof ForEachStmt || n instanceof WhileStmt || n instanceof DoStmt
+                    || n instanceof SwitchStmt) return true;
+        }
+        return false;
+    }
+
+    private boolean isCountingUpdate(Expression update) {
+        if (update instanceof UnaryExpr unary) return isModifying(unary) && isVariable(unary.getExpression());
+        return update instanceof AssignExpr assign && isVariable(assign.getTarget()) && isInvariant(assign.getValue())
+                && (assign.getOperator() == AssignExpr.Operator.PLUS || assign.getOperator() == AssignExpr.Operator.MINUS);
+    }
+
+    // Evaluated once by OpenMP, but on every iteration in Java
+    private boolean isInvariant(Expression expression) {
+        return expression.findAll(Node.class).stream().allMatch(n -> switch (n) {
+            case NameExpr name -> !isVariable(name) && !reductions.containsKey(name.getNameAsString())
+                    && !locals.contains(name.getNameAsString());
+            case BinaryExpr ignored -> true;
+            case UnaryExpr unary -> !isModifying(unary);
+            case EnclosedExpr ignored -> true;
+            case CastExpr ignored -> true;
+            case FieldAccessExpr ignored -> true;
+            case LiteralExpr ignored -> true;
+            case SimpleName ignored -> true;
+            case Type ignored -> true;
+            default -> false;
+        });
+    }
+
+    private boolean isVariable(Expression expression) {
+        return expression instanceof NameExpr name && name.getNameAsString().equals(variable);
+    }
+}
@@ -1,72 +1,191 @@
 package org.jinix.plugin.compiler;
 
 import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.NormalAnnotationExpr;
 import com.github.javaparser.ast.type.Type;
 import com.github.javaparser.resolution.TypeSolver;
+import org.jinix.Nativize;
 import org.jinix.plugin.MethodSourceReport;
 import org.jinix.plugin.compiler.HeaderGenerator.JniFunctionDeclaration;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
-// TODO Transpiler should be able to transpile in parallel
 public abstract class Transpiler {
+    protected static final String SHARED_NAME = "jinix_shared";
+
     protected final TypeSolver solver;
     protected final MethodSourceReport sourceReport;
+    private boolean parallel = true;
 
     protected Transpiler(TypeSolver solver, MethodSourceReport report) {
         this.solver = solver;
         this.sourceReport = report;
     }
 
-    protected abstract void beforeMethods(PrintWriter writer) throws Exception;
-    protected abstract void afterMethods(PrintWriter writer) throws Exception;
+    /**
+     * Writes the header included first by every translation unit, which is precompiled
+     */
+    protected abstract void writeSharedHeader(PrintWriter writer) throws Exception;
+    /**
+     * Writes the translation unit with definitions that are not specific to any class
+     */
+    protected abstract void writeSharedUnit(PrintWriter writer) throws Exception;
+    protected abstract void beforeMethods(PrintWriter writer, String className) throws Exception;
     protected abstract String getFileExtension();
+    protected abstract String getHeaderExtension();
     protected abstract String transpileMethod(JniFunctionDeclaration declaration, String className, MethodDeclaration method) throws Exception;
 
-    public void transpile(Map<String, List<JniFunctionDeclaration>> declarationsMap, Map<String, List<MethodDeclaration>> methodsMap, File destination) {
-        try (var out = new PrintWriter(new FileWriter(destination))){
-            List<String> transpiledMethods = new ArrayList<>();
+    /**
+     * Creates a transpiler for a single method, which runs in parallel with transpilers of other methods.
+     * It is merged back with {@link #merge} in the order of methods, so the output does not depend on scheduling
+     */
+    protected abstract Transpiler forMethod();
+    protected abstract void merge(Transpiler methodTranspiler);
+
+    /**
+     * Transpiles compilation units concurrently, which is the default
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Called with all methods to nativize, before any of them is transpiled
+     */
+    protected void beforeTranspilation(Map<String, List<MethodDeclaration>> methodsMap) {}
+
+    /**
+     * Transpiles methods of each class into a separate translation unit, so they can be compiled concurrently
+     */
+    public Sources transpile(Map<String, List<JniFunctionDeclaration>> declarationsMap, Map<String, List<MethodDeclaration>> methodsMap, File directory) {
+        try {
+            beforeTranspilation(methodsMap);
+            List<MethodTask> tasks = new ArrayList<>();
             for (String className : declarationsMap.keySet()) {
                 var declarations = declarationsMap.get(className);
                 var methods = methodsMap.get(className);
                 assert declarations.size() == methods.size();
 
                 for (int i = 0; i < declarations.size(); i++) {
-                    transpiledMethods.add(transpileMethod(declarations.get(i), className, methods.get(i)));
+                    tasks.add(new MethodTask(declarations.get(i), className, methods.get(i)));
                 }
             }
 
-            //TODO add preamble
-            beforeMethods(out);
-            out.println();
-            transpiledMethods.forEach(m -> out.println(m + "\n"));
-            out.println();
-            afterMethods(out);
+            // Transpiled on the common fork-join pool, the type solver has to be thread-safe. JavaParser caches
+            // resolved types in the nodes without locking, so methods sharing an AST are transpiled by one thread
+            List<List<Integer>> groups = new ArrayList<>();
+            Map<Node, List<Integer>> groupsByUnit = new IdentityHashMap<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                var method = tasks.get(i).method();
+                groupsByUnit.computeIfAbsent(method.findCompilationUnit().map(Node.class::cast).orElse(method), unit -> {
+                    var group = new ArrayList<Integer>();
+                    groups.add(group);
+                    return group;
+                }).add(i);
+            }
+            List<Map.Entry<Transpiler, String>> transpiled = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+            (parallel ? groups.parallelStream() : groups.stream()).forEach(group -> group.forEach(i -> {
+                var methodTranspiler = forMethod();
+                transpiled.set(i, Map.entry(methodTranspiler, methodTranspiler.transpileTask(tasks.get(i))));
+            }));
+
+            Map<String, List<String>> transpiledMethods = new LinkedHashMap<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                merge(transpiled.get(i).getKey());
+                transpiledMethods.computeIfAbsent(tasks.get(i).className(), k -> new ArrayList<>()).add(transpiled.get(i).getValue());
+            }
+
+            List<File> units = new ArrayList<>();
+            for (var entry : transpiledMethods.entrySet()) {
+                var unit = new File(directory, "jinix_" + entry.getKey().replaceAll("[.$]", "_") + "." + getFileExtension());
+                try (var out = new PrintWriter(new FileWriter(unit))) {
+                    beforeMethods(out, entry.getKey());
+                    out.println();
+                    entry.getValue().forEach(m -> out.println(m + "\n"));
+                }
+                units.add(unit);
+            }
+
+            var sharedUnit = new File(directory, SHARED_NAME + "." + getFileExtension());
+            try (var out = new PrintWriter(new FileWriter(sharedUnit))) {
+                writeSharedUnit(out);
+            }
+            units.add(sharedUnit);
+
+            // Written last, once everything it declares is known
+            var sharedHeader = new File(directory, SHARED_NAME + "." + getHeaderExtension());
+            try (var out = new PrintWriter(new FileWriter(sharedHeader))) {
+                writeSharedHeader(out);
+            }
+            return new Sources(sharedHeader, units);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param units translation units, compiled separately and linked into one library
+     */
+    public record Sources(File sharedHeader, List<File> units) {}
+
+    private String transpileTask(MethodTask task) {
+        try {
+            return transpileMethod(task.declaration(), task.className(), task.method());
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public MethodDeclaration parseMethod(String className, String methodName, JavaParser parser) {
-        var classSource = sourceReport.getClassData().get(className).source;
-        var compilationUnit = parser.parse(classSource).getResult().orElseThrow();  // TODO Cache for re-runs
+    private record MethodTask(JniFunctionDeclaration declaration, String className, MethodDeclaration method) {}
+
+    /**
+     * @param parsedSources compilation units by their source, each class is only parsed by the first of its methods
+     */
+    public MethodDeclaration parseMethod(String className, MethodSourceReport.MethodData method, String classSource,
+                                         JavaParser parser, Map<String, CompilationUnit> parsedSources) {
+        var compilationUnit = parsedSources.computeIfAbsent(classSource, source -> parser.parse(source).getResult().orElseThrow());
 
         var parts = className.split("\\.");
         var dummyClass = compilationUnit.getClassByName(parts[parts.length - 1]).orElseThrow();
-        return dummyClass.getMethodsByName(methodName).getFirst();
+        var methods = dummyClass.getMethodsByName(method.name());
+        return methods.stream().filter(m -> m.getBegin().filter(begin -> begin.line == method.line()).isPresent())
+                .findFirst().orElse(methods.getFirst());
+    }
+
+    public static boolean isDowncall(MethodDeclaration method) {
+        return isNativizeFlagSet(method, "downcall");
+    }
+
+    public static boolean isParallel(MethodDeclaration method) {
+        return isNativizeFlagSet(method, "parallel");
+    }
+
+    public static boolean isBatch(MethodDeclaration method) {
+        return isNativizeFlagSet(method, "batch");
+    }
+
+    private static boolean isNativizeFlagSet(MethodDeclaration method, String name) {
+        return method.getAnnotationByClass(Nativize.class)
+                .filter(a -> a instanceof NormalAnnotationExpr annotation && annotation.getPairs().stream()
+                        .anyMatch(p -> p.getNameAsString().equals(name) && p.getValue().toString().equals("true")))
+                .isPresent();
     }
 
     public static String jniType(Type type) {
         if (type.isVoidType()) return "void";
         if (List.of("String", "java.lang.String").contains(type.asString())) return "jstring";
-        //TODO add arrays
         if (type.isPrimitiveType()) return "j" + type.asString();
+        if (type.isArrayType() && type.asArrayType().getComponentType().isPrimitiveType())
+            return "j" + type.asArrayType().getComponentType().asString() + "Array";
+        if (type.isArrayType()) return "jobjectArray";
         return "jobject";
     }
 }
@@ -0,0 +1,100 @@
+// ------- JINIX METRICS -------
+// Included only in libraries built with metrics. Counters are per thread and only written by their thread,
+// so counting needs no locks or atomic read-modify-write. They are summed when read by org.jinix.JinixMetrics
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+
+// Defined by the shared unit, in the order of indexes used by nativized methods
+extern const int jinix_metrics_method_count;
+extern const char *const jinix_metrics_names[];
+
+struct JinixMethodCounters {
+    std::atomic<uint64_t> calls{0};
+    std::atomic<uint64_t> nanos{0};
+    std::atomic<uint64_t> upcalls{0};
+    std::atomic<uint64_t> fieldAccesses{0};
+};
+
+// Never freed, so counts of ended threads are kept
+struct JinixThreadCounters {
+    JinixMethodCounters *methods;
+    JinixThreadCounters *next;
+};
+
+inline std::atomic<JinixThreadCounters *> jinix_metrics_threads{nullptr};
+inline thread_local JinixThreadCounters *jinix_metrics_thread = nullptr;
+inline thread_local JinixMethodCounters *jinix_metrics_method = nullptr;   // Of the innermost running method
+
+inline JinixMethodCounters *JinixMetricsCounters(int index) {
+    if (jinix_metrics_thread == nullptr) {
+        auto counters = new JinixThreadCounters{new JinixMethodCounters[jinix_metrics_method_count], nullptr};
+        counters->next = jinix_metrics_threads.load(std::memory_order_relaxed);
+        while (!jinix_metrics_threads.compare_exchange_weak(counters->next, counters,
+                                                            std::memory_order_release, std::memory_order_relaxed)) {}
+        jinix_metrics_thread = counters;
+    }
+    return &jinix_metrics_thread->methods[index];
+}
+
+inline void JinixMetricsAdd(std::atomic<uint64_t> &counter, uint64_t value) {
+    counter.store(counter.load(std::memory_order_relaxed) + value, std::memory_order_relaxed);
+}
+
+// Counts a call of a native method and its time, including methods it calls through upcalls
+struct JinixMetricsScope {
+    JinixMethodCounters *method;
+    JinixMethodCounters *outer;
+    std::chrono::steady_clock::time_point start;
+    explicit JinixMetricsScope(int index) : method(JinixMetricsCounters(index)), outer(jinix_metrics_method),
+                                            start(std::chrono::steady_clock::now()) {
+        jinix_metrics_method = method;
+    }
+    JinixMetricsScope(const JinixMetricsScope &) = delete;
+    ~JinixMetricsScope() {
+        auto nanos = std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now() - start);
+        JinixMetricsAdd(method->calls, 1);
+        JinixMetricsAdd(method->nanos, nanos.count());
+        jinix_metrics_method = outer;
+    }
+};
+
+inline void JinixCountUpcall() {
+    if (jinix_metrics_method != nullptr) JinixMetricsAdd(jinix_metrics_method->upcalls, 1);
+}
+
+inline void JinixCountFieldAccess() {
+    if (jinix_metrics_method != nullptr) JinixMetricsAdd(jinix_metrics_method->fieldAccesses, 1);
+}
+
+// Natives of org.jinix.JinixMetrics
+inline jobjectArray JNICALL JinixMetricsMethods(JNIEnv *env, jclass) {
+    jclass stringClass = env->FindClass("java/lang/String");
+    jobjectArray names = env->NewObjectArray(jinix_metrics_method_count, stringClass, nullptr);
+    for (int i = 0; i < jinix_metrics_method_count && names != nullptr; i++) {
+        jstring name = env->NewStringUTF(jinix_metrics_names[i]);
+        env->SetObjectArrayElement(names, i, name);
+        env->DeleteLocalRef(name);
+    }
+    return names;
+}
+
+// Calls, nanoseconds, upcalls and field accesses of each method
+inline jlongArray JNICALL JinixMetricsSnapshot(JNIEnv *env, jclass) {
+    jsize length = jinix_metrics_method_count * 4;
+    jlong *totals = new jlong[length]();
+    for (auto thread = jinix_metrics_threads.load(std::memory_order_acquire); thread != nullptr; thread = thread->next) {
+        for (int i = 0; i < jinix_metrics_method_count; i++) {
+            JinixMethodCounters &method = thread->methods[i];
+            totals[i * 4] += method.calls.load(std::memory_order_relaxed);
+            totals[i * 4 + 1] += method.nanos.load(std::memory_order_relaxed);
+            totals[i * 4 + 2] += method.upcalls.load(std::memory_order_relaxed);
+            totals[i * 4 + 3] += method.fieldAccesses.load(std::memory_order_relaxed);
+        }
+    }
+    jlongArray result = env->NewLongArray(length);
+    if (result != nullptr) env->SetLongArrayRegion(result, 0, length, totals);
+    delete[] totals;
+    return result;
+}
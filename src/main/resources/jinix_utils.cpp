@@ -2,6 +2,18 @@
 // Code below is used only by Jinix transpiler to extend JNI functionality and should be used in any other way
 // It is assumed that jni libraries jni.h has been already included in the code above
 
+jclass JinixGlobalClass(JNIEnv *env, const char *name) {
+    jclass local = env->FindClass(name);
+    if (local == nullptr) return nullptr;     // NoClassDefFoundError pending
+    jclass global = (jclass) env->NewGlobalRef(local);
+    env->DeleteLocalRef(local);
+    return global;
+}
+
+struct JinixPendingException {
+    // Thrown out of the initialization of JNI IDs when a class or member is not found, with the Java exception pending
+};
+
 jobject SetAndGetObjectField(JNIEnv *env, jobject obj, jfieldID fieldID, jobject value) {
     env->SetObjectField(obj, fieldID, value);
     return value;
@@ -236,4 +248,260 @@ jdouble PostfixAddStaticDoubleField(JNIEnv *env, jclass clazz, jfieldID fieldID,
 
 jdouble PrefixAddStaticDoubleField(JNIEnv *env, jclass clazz, jfieldID fieldID, jdouble change) {
     return SetAndGetStaticDoubleField(env, clazz, fieldID, env->GetStaticDoubleField(clazz, fieldID) + change);
-}
\ No newline at end of file
+}
+
+// ---------- PRIMITIVE ARRAYS ----------
+
+void JinixGetArrayRegion(JNIEnv *env, jbooleanArray array, jsize length, jboolean *buffer) { env->GetBooleanArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jbyteArray array, jsize length, jbyte *buffer) { env->GetByteArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jcharArray array, jsize length, jchar *buffer) { env->GetCharArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jshortArray array, jsize length, jshort *buffer) { env->GetShortArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jintArray array, jsize length, jint *buffer) { env->GetIntArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jlongArray array, jsize length, jlong *buffer) { env->GetLongArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jfloatArray array, jsize length, jfloat *buffer) { env->GetFloatArrayRegion(array, 0, length, buffer); }
+void JinixGetArrayRegion(JNIEnv *env, jdoubleArray array, jsize length, jdouble *buffer) { env->GetDoubleArrayRegion(array, 0, length, buffer); }
+
+void JinixSetArrayRegion(JNIEnv *env, jbooleanArray array, jsize length, jboolean *buffer) { env->SetBooleanArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jbyteArray array, jsize length, jbyte *buffer) { env->SetByteArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jcharArray array, jsize length, jchar *buffer) { env->SetCharArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jshortArray array, jsize length, jshort *buffer) { env->SetShortArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jintArray array, jsize length, jint *buffer) { env->SetIntArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jlongArray array, jsize length, jlong *buffer) { env->SetLongArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jfloatArray array, jsize length, jfloat *buffer) { env->SetFloatArrayRegion(array, 0, length, buffer); }
+void JinixSetArrayRegion(JNIEnv *env, jdoubleArray array, jsize length, jdouble *buffer) { env->SetDoubleArrayRegion(array, 0, length, buffer); }
+
+jbooleanArray JinixNewArray(JNIEnv *env, jsize length, jboolean *) { return env->NewBooleanArray(length); }
+jbyteArray JinixNewArray(JNIEnv *env, jsize length, jbyte *) { return env->NewByteArray(length); }
+jcharArray JinixNewArray(JNIEnv *env, jsize length, jchar *) { return env->NewCharArray(length); }
+jshortArray JinixNewArray(JNIEnv *env, jsize length, jshort *) { return env->NewShortArray(length); }
+jintArray JinixNewArray(JNIEnv *env, jsize length, jint *) { return env->NewIntArray(length); }
+jlongArray JinixNewArray(JNIEnv *env, jsize length, jlong *) { return env->NewLongArray(length); }
+jfloatArray JinixNewArray(JNIEnv *env, jsize length, jfloat *) { return env->NewFloatArray(length); }
+jdoubleArray JinixNewArray(JNIEnv *env, jsize length, jdouble *) { return env->NewDoubleArray(length); }
+
+struct JinixThrow {
+    // Java exception thrown as a C++ exception by native code, and raised once it leaves to Java
+    enum Kind { NONE, NULL_POINTER, INDEX_OUT_OF_BOUNDS, NEGATIVE_ARRAY_SIZE } kind;
+    jint index;     // Or the size of a negative array
+    jint length;
+    jlong iteration;    // Of the parallel loop which recorded the exception
+    void raise(JNIEnv *env) const {
+        char message[64];
+        switch (kind) {
+            case NULL_POINTER:
+                env->ThrowNew(env->FindClass("java/lang/NullPointerException"), "Array is null");
+                break;
+            case INDEX_OUT_OF_BOUNDS:
+                snprintf(message, sizeof(message), "Index %d out of bounds for length %d", index, length);
+                env->ThrowNew(env->FindClass("java/lang/ArrayIndexOutOfBoundsException"), message);
+                break;
+            case NEGATIVE_ARRAY_SIZE:
+                snprintf(message, sizeof(message), "%d", index);
+                env->ThrowNew(env->FindClass("java/lang/NegativeArraySizeException"), message);
+                break;
+            case NONE:
+                break;
+        }
+    }
+    // Keeps the exception of the failing iteration of a parallel loop which Java would run first, so the same one is
+    // thrown by every run, as exceptions cannot leave OpenMP threads
+    void record(const JinixThrow &thrown, jlong iteration) {
+        #pragma omp critical(jinix_thrown)
+        if (kind == NONE || iteration < this->iteration) {
+            *this = thrown;
+            this->iteration = iteration;
+        }
+    }
+};
+
+template<auto F> struct JinixEntry;
+template<typename R, typename... P, R (*F)(JNIEnv *, jobject, P...)> struct JinixEntry<F> {
+    // Registered instead of native functions which may throw, to raise their exceptions in Java
+    static R JNICALL call(JNIEnv *env, jobject thisObject, P... arguments) {
+        try {
+            return F(env, thisObject, arguments...);
+        } catch (const JinixThrow &thrown) {
+            thrown.raise(env);
+            return R();
+        }
+    }
+};
+
+enum JinixArrayFlags { JINIX_ARRAY_READ_ONLY = 1, JINIX_ARRAY_ALLOW_CRITICAL = 2, JINIX_ARRAY_BORROWED = 4, JINIX_ARRAY_NULL = 8, JINIX_ARRAY_ALIAS = 16 };
+#ifndef JINIX_ARRAY_REGION_LIMIT
+#define JINIX_ARRAY_REGION_LIMIT 256
+#endif
+// Arrays up to JINIX_ARRAY_REGION_LIMIT elements are copied into an inline buffer with Get/Set<Type>ArrayRegion.
+// Larger ones are pinned with GetPrimitiveArrayCritical by pin() if the method makes no other JNI calls,
+// otherwise they are copied to the heap. Null arrays and indexes out of bounds throw a JinixThrow, like Java would.
+// A parameter which is the same Java array as an earlier one shares its elements, so copies do not overwrite each other
+template<typename T, typename A> struct JinixArray {
+    JNIEnv *env;
+    A array;
+    T *elements;
+    jsize length;
+    int flags;
+    bool critical = false;
+    JinixArray *aliased = nullptr;  // Owner of the shared elements
+    T buffer[JINIX_ARRAY_REGION_LIMIT];
+    // Wraps an array that came from Java
+    JinixArray(JNIEnv *env, A array, int flags) : env(env), array(array), flags(flags) {
+        wrap();
+    }
+    // Wraps an array that came from Java, which may be one of the earlier arrays
+    JinixArray(JNIEnv *env, A array, int flags, std::initializer_list<JinixArray *> earlier) : env(env), array(array), flags(flags) {
+        for (JinixArray *other : earlier) {
+            if (other->aliased != nullptr) other = other->aliased;
+            if (array == nullptr || other->array == nullptr || !env->IsSameObject(array, other->array)) continue;
+            // The owner writes the elements back, including changes made through this one
+            if (!(flags & JINIX_ARRAY_READ_ONLY)) other->flags &= ~JINIX_ARRAY_READ_ONLY;
+            this->flags |= JINIX_ARRAY_ALIAS | JINIX_ARRAY_BORROWED;
+            aliased = other;
+            length = other->length;
+            elements = other->elements;
+            return;
+        }
+        wrap();
+    }
+    void wrap() {
+        if (array == nullptr) {
+            length = 0;     // So that any index fails the bounds check
+            elements = buffer;
+            this->flags |= JINIX_ARRAY_NULL;
+            return;
+        }
+        length = env->GetArrayLength(array);
+        if (length <= JINIX_ARRAY_REGION_LIMIT) {
+            elements = buffer;
+        } else if (flags & JINIX_ARRAY_ALLOW_CRITICAL) {
+            elements = nullptr;     // Acquired by pin()
+            return;
+        } else {
+            elements = (T *) malloc(length * sizeof(T));
+        }
+        JinixGetArrayRegion(env, array, length, elements);
+    }
+    // Creates an array that lives in native memory until it is passed to Java
+    JinixArray(JNIEnv *env, jsize length) : env(env), array(nullptr), length(length), flags(0) {
+        if (length < 0) throw JinixThrow{JinixThrow::NEGATIVE_ARRAY_SIZE, length, 0};
+        elements = length <= JINIX_ARRAY_REGION_LIMIT ? buffer : (T *) malloc(length * sizeof(T));
+        memset(elements, 0, length * sizeof(T));
+    }
+    JinixArray(JNIEnv *env, std::initializer_list<T> values) : JinixArray(env, (jsize) values.size()) {
+        jsize i = 0;
+        for (T value : values) elements[i++] = value;
+    }
+    // Views elements owned by the caller, such as heap arrays passed to downcalls
+    JinixArray(T *elements, jsize length) : env(nullptr), array(nullptr), elements(elements), length(length), flags(JINIX_ARRAY_BORROWED) {}
+    JinixArray(const JinixArray &) = delete;
+    ~JinixArray() {
+        unpin();
+        if (array != nullptr && !(flags & (JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALIAS))) JinixSetArrayRegion(env, array, length, elements);
+        if (elements != buffer && !(flags & JINIX_ARRAY_BORROWED)) free(elements);
+    }
+    void pin() {
+        if (aliased != nullptr) elements = aliased->elements;   // Pinned first
+        if (elements != nullptr) return;
+        elements = (T *) env->GetPrimitiveArrayCritical(array, nullptr);
+        critical = true;
+    }
+    void unpin() {
+        if (!critical) return;
+        env->ReleasePrimitiveArrayCritical(array, elements, (flags & JINIX_ARRAY_READ_ONLY) ? JNI_ABORT : 0);
+        critical = false;
+        array = nullptr;
+        elements = buffer;
+    }
+    // Publishes native changes and returns an array usable by Java
+    A toJava() {
+        if (flags & JINIX_ARRAY_NULL) return nullptr;
+        if (aliased != nullptr) return aliased->toJava();
+        if (array == nullptr) {
+            array = JinixNewArray(env, length, elements);
+            flags &= ~JINIX_ARRAY_READ_ONLY;
+        }
+        if (!critical && !(flags & JINIX_ARRAY_READ_ONLY)) JinixSetArrayRegion(env, array, length, elements);
+        return array;
+    }
+    // Reads changes made by Java to a copied array passed to it, e.g. in an upcall
+    void fromJava() {
+        if (aliased != nullptr) return aliased->fromJava();
+        if (array != nullptr && !critical) JinixGetArrayRegion(env, array, length, elements);
+    }
+    T &operator[](jsize index) {
+        if ((unsigned) index >= (unsigned) length) fail(index);
+        return elements[index];
+    }
+    jsize size() {
+        if (flags & JINIX_ARRAY_NULL) fail(0);
+        return length;
+    }
+    T *begin() {
+        size();     // Iterating a null array throws as well
+        return elements;
+    }
+    T *end() { return elements + length; }
+    [[noreturn]] void fail(jsize index) {
+        if (flags & JINIX_ARRAY_NULL) throw JinixThrow{JinixThrow::NULL_POINTER, 0, 0};
+        throw JinixThrow{JinixThrow::INDEX_OUT_OF_BOUNDS, index, length};
+    }
+};
+
+template<typename F> struct JinixScopeExit {
+    F onExit;
+    JinixScopeExit(F onExit) : onExit(onExit) {}
+    ~JinixScopeExit() { onExit(); }
+};
+
+jint JinixParallelism(JNIEnv *env) {
+    // Threads of parallel loops: the jinix.parallelism system property, capped by the processors available to the JVM,
+    // which follow container CPU limits, unlike the processor count used by OpenMP. If Java throws, the exception is
+    // cleared and the processor count of the system is used instead
+    jint processors = (jint) std::thread::hardware_concurrency();
+    jint threads = processors;
+    jclass runtimeClass = env->FindClass("java/lang/Runtime");
+    jobject runtime = env->CallStaticObjectMethod(runtimeClass, env->GetStaticMethodID(runtimeClass, "getRuntime", "()Ljava/lang/Runtime;"));
+    if (!env->ExceptionCheck()) {
+        jint available = env->CallIntMethod(runtime, env->GetMethodID(runtimeClass, "availableProcessors", "()I"));
+        if (!env->ExceptionCheck()) processors = threads = available;
+    }
+    env->ExceptionClear();
+    jclass integerClass = env->FindClass("java/lang/Integer");
+    jstring name = env->NewStringUTF("jinix.parallelism");
+    jobject property = env->CallStaticObjectMethod(integerClass, env->GetStaticMethodID(integerClass, "getInteger", "(Ljava/lang/String;)Ljava/lang/Integer;"), name);
+    if (!env->ExceptionCheck() && property != nullptr) {
+        jint value = env->CallIntMethod(property, env->GetMethodID(integerClass, "intValue", "()I"));
+        if (!env->ExceptionCheck()) threads = value;
+    }
+    env->ExceptionClear();
+    env->DeleteLocalRef(property);
+    env->DeleteLocalRef(name);
+    env->DeleteLocalRef(integerClass);
+    env->DeleteLocalRef(runtime);
+    env->DeleteLocalRef(runtimeClass);
+    return threads < 1 ? 1 : threads > processors ? processors : threads;
+}
+
+bool JinixCheckBatch(JNIEnv *env, jarray results, std::initializer_list<jarray> arguments) {
+    // Throws what the Java loop of a batch method would, but before any element is processed
+    if (results == nullptr) {
+        env->ThrowNew(env->FindClass("java/lang/NullPointerException"), "Batch results array is null");
+        return false;
+    }
+    jsize length = env->GetArrayLength(results);
+    for (jarray argument : arguments) {
+        if (length == 0) break;
+        if (argument == nullptr) {
+            env->ThrowNew(env->FindClass("java/lang/NullPointerException"), "Batch argument array is null");
+            return false;
+        }
+        jsize argumentLength = env->GetArrayLength(argument);
+        if (argumentLength < length) {
+            char message[64];
+            snprintf(message, sizeof(message), "Index %d out of bounds for length %d", argumentLength, argumentLength);
+            env->ThrowNew(env->FindClass("java/lang/ArrayIndexOutOfBoundsException"), message);
+            return false;
+        }
+    }
+    return true;
+}
@@ -0,0 +1,93 @@
+package org.jinix.plugin;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MethodSourceReportTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTrip() throws IOException {
+        var report = new MethodSourceReport();
+        addClass(report, "org.example.Kernel", "org/example/Kernel.java", "class Kernel {}");
+        report.addMethod("org.example.Kernel", new MethodSourceReport.MethodData("dot", 10, 120, 3));
+        report.addMethod("org.example.Kernel", new MethodSourceReport.MethodData("sum", 130, 200, 9));
+        addClass(report, "org.example.Empty", "org/example/Empty.java", "class Empty {}");
+
+        var read = MethodSourceReport.read(List.of(write(report, "kernel")));
+        assertEquals(Set.of("org.example.Kernel", "org.example.Empty"), read.getClassNames());
+        var kernel = read.getClassData("org.example.Kernel");
+        assertEquals("org/example/Kernel.class", kernel.classFile);
+        assertEquals("org/example/Kernel.java", kernel.sourcePath);
+        assertEquals(MethodSourceReport.hash("class Kernel {}".getBytes(StandardCharsets.UTF_8)), kernel.sourceHash);
+        assertEquals(List.of(new MethodSourceReport.MethodData("dot", 10, 120, 3),
+                new MethodSourceReport.MethodData("sum", 130, 200, 9)), kernel.methods);
+        assertEquals(List.of(), read.getClassData("org.example.Empty").methods);
+        assertTrue(read.isMethodReported("org.example.Kernel", "sum"));
+        assertFalse(read.isMethodReported("org.example.Empty", "sum"));
+    }
+
+    @Test
+    void mergesFragments() throws IOException {
+        var first = new MethodSourceReport();
+        addClass(first, "org.example.A", "org/example/A.java", "class A {}");
+        first.addMethod("org.example.A", new MethodSourceReport.MethodData("a", 0, 10, 1));
+        var second = new MethodSourceReport();
+        addClass(second, "org.example.B", "org/example/B.java", "class B {}");
+        second.addMethod("org.example.B", new MethodSourceReport.MethodData("b", 20, 30, 2));
+        addClass(second, "org.example.B$Inner", "org/example/B.java", "class B {}");
+        second.addMethod("org.example.B$Inner", new MethodSourceReport.MethodData("c", 40, 50, 4));
+
+        var read = MethodSourceReport.read(List.of(write(first, "a"), write(second, "b")));
+        assertEquals(Set.of("org.example.A", "org.example.B", "org.example.B$Inner"), read.getClassNames());
+        assertEquals("a", read.getClassData("org.example.A").methods.getFirst().name());
+        assertEquals("b", read.getClassData("org.example.B").methods.getFirst().name());
+        assertEquals(new MethodSourceReport.MethodData("c", 40, 50, 4), read.getClassData("org.example.B$Inner").methods.getFirst());
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        var report = new MethodSourceReport();
+        addClass(report, "org.example.A", "org/example/A.java", "class A {}");
+        var fragment = write(report, "a");
+        var bytes = Files.readAllBytes(fragment.toPath());
+
+        var otherMagic = directory.resolve("magic.report");
+        Files.write(otherMagic, ByteBuffer.wrap(bytes.clone()).putInt(0, 0xCAFEBABE).array());
+        var error = assertThrows(IllegalStateException.class, () -> MethodSourceReport.read(List.of(otherMagic.toFile())));
+        assertEquals("Not a Jinix report", error.getMessage());
+
+        var otherVersion = directory.resolve("version.report");
+        var buffer = ByteBuffer.wrap(bytes.clone());
+        Files.write(otherVersion, buffer.putInt(4, buffer.getInt(4) + 1).array());
+        error = assertThrows(IllegalStateException.class, () -> MethodSourceReport.read(List.of(otherVersion.toFile())));
+        assertEquals("Report of an incompatible Jinix version", error.getMessage());
+    }
+
+    private static void addClass(MethodSourceReport report, String name, String sourcePath, String source) {
+        var classFile = name.replace('.', '/') + ".class";
+        report.addClassIfAbsent(name, () -> new MethodSourceReport.ClassData(name, classFile, sourcePath,
+                MethodSourceReport.hash(source.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private File write(MethodSourceReport report, String name) throws IOException {
+        var file = directory.resolve(name + MethodSourceReport.EXTENSION).toFile();
+        try (var output = new FileOutputStream(file)) {
+            report.write(output);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,154 @@
+package org.jinix.plugin;
+
+import org.jinix.Nativize;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.objectweb.asm.Opcodes.*;
+
+public class NativeMethodTransformerTest {
+    static class Kernel {
+        int offset = 1;
+
+        @Deprecated
+        @Nativize(minLength = 16)
+        int sum(int[] values) {
+            int sum = 0;
+            for (int value : values) sum += value;
+            return sum + offset;
+        }
+
+        @Nativize(batch = true)
+        static long scale(int value, double factor) {
+            return (long) (value * factor);
+        }
+
+        @Nativize(batch = true, minLength = 4)
+        long shift(long value) {
+            return value + offset;
+        }
+
+        @Nativize(downcall = true)
+        static int pick(int[] values, int index) {
+            return values[index];
+        }
+
+        // Not reported, so it is left as is
+        @Nativize
+        static int skipped(int a) {
+            return a;
+        }
+    }
+
+    @Test
+    void transformsReportedMethods() throws Exception {
+        var transformed = transform();
+        var methods = transformed.methods.stream().collect(Collectors.toMap(m -> m.name + m.desc, m -> m));
+
+        // Dispatchers keep access and annotations, except @Nativize
+        var sum = methods.get("sum([I)I");
+        assertEquals(0, sum.access & ACC_PRIVATE);
+        assertEquals(List.of(Type.getDescriptor(Deprecated.class)), sum.visibleAnnotations.stream().map(a -> a.desc).toList());
+        assertNull(sum.invisibleAnnotations);
+        assertEquals(ACC_PRIVATE | ACC_SYNTHETIC, methods.get("sum$java([I)I").access);
+        assertEquals(ACC_PRIVATE | ACC_SYNTHETIC | ACC_NATIVE, methods.get("sum$native([I)I").access);
+        // The native method is only called for arrays of at least minLength elements
+        assertTrue(hasInstruction(sum, i -> i instanceof LdcInsnNode ldc && ldc.cst.equals(16)));
+        assertTrue(hasInstruction(sum, i -> i.getOpcode() == IF_ICMPLT));
+        assertTrue(hasInstruction(sum, i -> i.getOpcode() == IFNULL));
+
+        // Batch overloads with a dispatcher, a native method and a Java loop over the elements
+        assertEquals(ACC_STATIC, methods.get("scale([I[D[J)V").access);
+        assertEquals(ACC_PRIVATE | ACC_SYNTHETIC | ACC_STATIC | ACC_NATIVE, methods.get("scale$native([I[D[J)V").access);
+        assertEquals(ACC_PRIVATE | ACC_SYNTHETIC | ACC_STATIC, methods.get("scale$java([I[D[J)V").access);
+        assertTrue(methods.containsKey("scale$native(ID)J"));
+        // minLength of a batch method applies to its overload
+        assertTrue(hasInstruction(methods.get("shift([J[J)V"), i -> i instanceof LdcInsnNode ldc && ldc.cst.equals(4)));
+        assertFalse(hasInstruction(methods.get("shift(J)J"), i -> i instanceof LdcInsnNode));
+        assertTrue(methods.containsKey("shift$native([J[J)V"));
+        assertTrue(methods.containsKey("shift$java([J[J)V"));
+        assertFalse(hasInstruction(methods.get("scale(ID)J"), i -> i instanceof LdcInsnNode));
+
+        // Downcalls are implemented in Java with an invokedynamic
+        var pick = methods.get("pick$native([II)I");
+        assertEquals(0, pick.access & ACC_NATIVE);
+        assertTrue(hasInstruction(pick, i -> i instanceof InvokeDynamicInsnNode));
+
+        assertFalse(methods.containsKey("skipped$java(I)I"));
+        assertFalse(methods.containsKey("skipped$native(I)I"));
+    }
+
+    @Test
+    void callsJavaBodiesWithoutLibrary() throws Exception {
+        var writer = new ClassWriter(0);
+        transform().accept(writer);
+        var bytes = writer.toByteArray();
+        var clazz = new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(Kernel.class.getName(), bytes, 0, bytes.length);
+            }
+        }.define();
+        // Defined by another class loader, so in another package at runtime
+        var constructor = clazz.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        var kernel = constructor.newInstance();
+
+        assertEquals(7, method(clazz, "sum", int[].class).invoke(kernel, (Object) new int[]{1, 2, 3}));
+        var scaled = new long[3];
+        method(clazz, "scale", int[].class, double[].class, long[].class).invoke(null, new int[]{1, 2, 3}, new double[]{2, 3, 4}, scaled);
+        assertArrayEquals(new long[]{2, 6, 12}, scaled);
+        var shifted = new long[2];
+        method(clazz, "shift", long[].class, long[].class).invoke(kernel, new long[]{10, 20}, shifted);
+        assertArrayEquals(new long[]{11, 21}, shifted);
+    }
+
+    private static Method method(Class<?> clazz, String name, Class<?>... parameters) throws NoSuchMethodException {
+        var method = clazz.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return method;
+    }
+
+    // Checks the order of visits, then frames and stack sizes computed by the transformer
+    private static ClassNode transform() throws IOException {
+        var report = new MethodSourceReport();
+        var className = Kernel.class.getName();
+        report.addClassIfAbsent(className, () -> new MethodSourceReport.ClassData(className,
+                className.replace('.', '/') + ".class", "org/jinix/plugin/NativeMethodTransformerTest.java", "00".repeat(32)));
+        for (String method : List.of("sum", "scale", "shift", "pick")) {
+            report.addMethod(className, new MethodSourceReport.MethodData(method, 0, 0, 0));
+        }
+
+        ClassReader reader;
+        try (var stream = Kernel.class.getResourceAsStream("NativeMethodTransformerTest$Kernel.class")) {
+            reader = new ClassReader(stream);
+        }
+        var transformed = new ClassNode();
+        reader.accept(new NativeMethodTransformer(new CheckClassAdapter(transformed, false), report, reader), 0);
+
+        var writer = new ClassWriter(0);
+        transformed.accept(writer);
+        var errors = new StringWriter();
+        CheckClassAdapter.verify(new ClassReader(writer.toByteArray()), NativeMethodTransformerTest.class.getClassLoader(),
+                false, new PrintWriter(errors));
+        assertEquals("", errors.toString());
+        return transformed;
+    }
+
+    private static boolean hasInstruction(MethodNode method, Predicate<AbstractInsnNode> predicate) {
+        return Arrays.stream(method.instructions.toArray()).anyMatch(predicate);
+    }
+}
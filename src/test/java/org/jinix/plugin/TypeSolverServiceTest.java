@@ -0,0 +1,78 @@
+package org.jinix.plugin;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import org.gradle.api.services.BuildServiceParameters;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opentest4j.AssertionFailedError;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TypeSolverServiceTest {
+    @TempDir
+    Path directory;
+
+    private final TypeSolverService service = new TypeSolverService() {
+        @Override
+        public BuildServiceParameters.None getParameters() {
+            return null;
+        }
+    };
+
+    @Test
+    void reusesUnchangedSources() throws Exception {
+        var sources = Files.createDirectories(directory.resolve("src/p"));
+        var a = Files.writeString(sources.resolve("A.java"), "package p; class A { int a; }");
+        var b = Files.writeString(sources.resolve("B.java"), "package p; class B { int b; }");
+        var sourceDirectories = List.of(directory.resolve("src").toFile());
+
+        var solver = service.solver(sourceDirectories, List.of());
+        var parser = new JavaParser();
+        for (Path file : List.of(a, b)) {
+            var source = Files.readString(file);
+            solver.parsedSources().put(source, parser.parse(source).getResult().orElseThrow());
+        }
+        assertEquals(1, solver.typeSolver().solveType("p.B").getDeclaredFields().size());
+        assertFalse(solver.typeSolver().tryToSolveType("p.C").isSolved());
+        assertSame(solver, service.solver(sourceDirectories, List.of()));
+        assertEquals(2, solver.parsedSources().size());
+
+        Files.writeString(b, "package p; class B { int b; long c; }");
+        Files.writeString(sources.resolve("C.java"), "package p; class C {}");
+        assertSame(solver, service.solver(sourceDirectories, List.of()));
+        assertEquals(List.of(Files.readString(a)), List.copyOf(solver.parsedSources().keySet()));
+        assertEquals(2, solver.typeSolver().solveType("p.B").getDeclaredFields().size());
+        assertTrue(solver.typeSolver().tryToSolveType("p.C").isSolved());
+    }
+
+    @Test
+    void indexesChangedJars() throws Exception {
+        var jar = directory.resolve("lib.jar");
+        Files.copy(jarOf(Test.class), jar);
+        var root = new ReflectionTypeSolver();
+
+        var solver = TypeSolverService.jarSolver(jar, root);
+        assertSame(solver, TypeSolverService.jarSolver(jar, root));
+        assertTrue(solver.tryToSolveType(Test.class.getName()).isSolved());
+
+        var modified = Files.getLastModifiedTime(jar).toMillis();
+        Files.copy(jarOf(AssertionFailedError.class), jar, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(modified + 1000));
+        var changed = TypeSolverService.jarSolver(jar, root);
+        assertNotSame(solver, changed);
+        assertTrue(changed.tryToSolveType(AssertionFailedError.class.getName()).isSolved());
+        assertFalse(changed.tryToSolveType(Test.class.getName()).isSolved());
+    }
+
+    private static Path jarOf(Class<?> clazz) throws Exception {
+        return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).toPath();
+    }
+}
@@ -2,6 +2,7 @@ package org.jinix.plugin.compiler;
 
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
@@ -9,26 +10,36 @@ import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSol
 import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import org.codehaus.groovy.control.io.NullWriter;
+import org.jinix.NativizationException;
 import org.jinix.Nativize;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static java.security.Security.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class CPPTranspilerTest {
+    private final CombinedTypeSolver solver;
     private final CPPTranspiler transpiler;
     private final JavaSymbolSolver resolver;
 
     {
-        var solver = new CombinedTypeSolver();
+        solver = new CombinedTypeSolver();
         solver.add(new ReflectionTypeSolver());
         solver.add(new JavaParserTypeSolver("src/test/java"));
         this.transpiler = new CPPTranspiler(solver, null);
@@ -248,6 +259,99 @@ public class CPPTranspilerTest {
         """.trim(), transpiler.transpileBody(this.getClass().getName(), parsed));
     }
 
+    @Test
+    void arrays() {
+        var parsed = parse("""
+        int method(int[] a, double[] b) {
+            int[] c = new int[a.length];
+            int[] d = {1, 2, 3};
+            int[] e = a;
+            int sum = 0;
+            for (int i = 0; i < a.length; i++) {
+                c[i] = a[i] * 2;
+                sum += c[i] + d[i % 3];
+            }
+            for (int x : e) sum += x;
+            return sum;
+        }
+        """);
+
+        assertEquals("""
+        JinixArray<jint, jintArray> a(env, jarray_a, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+        JinixArray<jdouble, jdoubleArray> b(env, jarray_b, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+        a.pin();
+        b.pin();
+        JinixScopeExit jinix_unpin([&] { b.unpin(); a.unpin(); });
+        JinixArray<jint, jintArray> c(env, a.size());
+        JinixArray<jint, jintArray> d(env, {1, 2, 3});
+        JinixArray<jint, jintArray> &e = a;
+        int sum = 0;
+        for (int i = 0; i < a.size(); i++) {
+            c[i] = a[i] * 2;
+            sum += c[i] + d[i % 3];
+        }
+        for (int x : e) {
+            sum += x;
+        }
+        return sum;
+        """.trim(), transpiler.transpileBody(this.getClass().getName(), parsed));
+
+        parsed = parse("""
+        int[] method(int[] a, long[] b) {
+            int[] c = a;
+            c[0]++;
+            b[0] = a.length;
+            return new int[]{1, 2};
+        }
+        """);
+
+        assertEquals("""
+        JinixArray<jint, jintArray> a(env, jarray_a, 0);
+        JinixArray<jlong, jlongArray> b(env, jarray_b, 0);
+        JinixArray<jint, jintArray> &c = a;
+        c[0]++;
+        b[0] = a.size();
+        return JinixArray<jint, jintArray>(env, {1, 2}).toJava();
+        """.trim(), transpiler.transpileBody(this.getClass().getName(), parsed));
+
+        // Java can change copies passed to it
+        parsed = parse("""
+        void fill(int[] a) {}
+        int method(int[] a) {
+            a[1] = 2;
+            fill(a);
+            return a[0];
+        }
+        """);
+
+        assertEquals("""
+        JinixArray<jint, jintArray> a(env, jarray_a, 0);
+        a[1] = 2;
+        [&](auto jinix_arg0) { env->CallVoidMethod(thisObject, _Dummy_fill_AI, jinix_arg0); a.fromJava(); }(a.toJava());
+        return a[0];
+        """.trim(), transpiler.transpileBody(this.getClass().getName(), parsed));
+
+        // The same Java array may be passed for both parameters, then they share elements
+        parsed = parse("""
+        void method(int[] a, long[] c, int[] b) {
+            for (int i = 0; i + 1 < a.length; i++) b[i + 1] = a[i] + 1;
+        }
+        """);
+
+        assertEquals("""
+        JinixArray<jint, jintArray> a(env, jarray_a, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+        JinixArray<jlong, jlongArray> c(env, jarray_c, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+        JinixArray<jint, jintArray> b(env, jarray_b, JINIX_ARRAY_ALLOW_CRITICAL, {&a});
+        a.pin();
+        c.pin();
+        b.pin();
+        JinixScopeExit jinix_unpin([&] { b.unpin(); c.unpin(); a.unpin(); });
+        for (int i = 0; i + 1 < a.size(); i++) {
+            b[i + 1] = a[i] + 1;
+        }
+        """.trim(), transpiler.transpileBody(this.getClass().getName(), parsed));
+    }
+
     static int UPPER_STATIC = 0;
     static void upperStatic() {}
 
@@ -311,6 +415,7 @@ public class CPPTranspilerTest {
 
     @Test
     void methodsAndFields() throws Exception {
+        transpiler.setCacheFields(false);
         var parsed = parseTestPath(Dummy.class, "method");
 
         assertEquals("""
@@ -343,13 +448,13 @@ public class CPPTranspilerTest {
         result = (int)env->GetStaticIntField(class_org_jinix_plugin_compiler_CPPTranspilerTest, org_jinix_plugin_compiler_CPPTranspilerTest_UPPER_STATIC);
         """.trim(), transpiler.transpileBody(Dummy.class.getName(), parsed));
 
-        transpiler.beforeMethods(new PrintWriter(new NullWriter()));
+        transpiler.writeSharedHeader(new PrintWriter(new NullWriter()));
         assertEquals("""
-        class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy = env->FindClass("org/jinix/plugin/compiler/CPPTranspilerTest/Dummy");
+        class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy = JinixGlobalClass(env, "org/jinix/plugin/compiler/CPPTranspilerTest/Dummy");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_thisCall = env->GetMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy, "thisCall", "()V");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_call = env->GetMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy, "call", "()V");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_withParams_II = env->GetMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy, "withParams", "(II)I");
-        class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A = env->FindClass("org/jinix/plugin/compiler/CPPTranspilerTest/Dummy/A");
+        class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A = JinixGlobalClass(env, "org/jinix/plugin/compiler/CPPTranspilerTest/Dummy/A");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A_call = env->GetMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A, "call", "()V");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A_staticCall = env->GetStaticMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A, "staticCall", "()V");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A_staticCall_IJ = env->GetStaticMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A, "staticCall", "(IJ)I");
@@ -358,15 +463,513 @@ public class CPPTranspilerTest {
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_CONST = env->GetStaticFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy, "CONST", "I");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A_staticField = env->GetStaticFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A, "staticField", "I");
         org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A_a = env->GetFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_Dummy_A, "a", "I");
-        class_java_security_Security = env->FindClass("java/security/Security");
+        class_java_security_Security = JinixGlobalClass(env, "java/security/Security");
         java_security_Security_getProviders = env->GetStaticMethodID(class_java_security_Security, "getProviders", "()[Ljava/security/Provider;");
-        class_org_jinix_plugin_compiler_CPPTranspilerTest = env->FindClass("org/jinix/plugin/compiler/CPPTranspilerTest");
+        class_org_jinix_plugin_compiler_CPPTranspilerTest = JinixGlobalClass(env, "org/jinix/plugin/compiler/CPPTranspilerTest");
         org_jinix_plugin_compiler_CPPTranspilerTest_upperStatic = env->GetStaticMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest, "upperStatic", "()V");
         org_jinix_plugin_compiler_CPPTranspilerTest_UPPER_STATIC = env->GetStaticFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest, "UPPER_STATIC", "I");
         """.trim(), transpiler.jniStatements.stream().map(CPPTranspiler.JniStatement::initialization).collect(Collectors.joining("\n")));
     }
 
+    @SuppressWarnings({"FieldMayBeFinal", "SameParameterValue"})
+    static class CachedFields {
+        static final int LIMIT = 10;
+        static int total = 0;
+        int counter = 0;
+        volatile int flag = 0;
+        int once = 0;
+        int aliased = 0;
+        int other(int a) { return a; }
+
+        int method(CachedFields c) {
+            int sum = 0;
+            for (int i = 0; i < LIMIT; i++) {
+                sum += other(counter++);
+                total += flag + aliased;
+            }
+            c.aliased = once;
+            return sum;
+        }
+    }
+
+    @Test
+    void fieldCaching() {
+        var parsed = parseTestPath(CachedFields.class, "method");
+
+        assertEquals("""
+        jint cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter = env->GetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter);
+        jint cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total = env->GetStaticIntField(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total);
+        JinixScopeExit jinix_write_back([&] { env->SetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter, cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter); env->SetStaticIntField(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total, cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total); });
+        int sum = 0;
+        for (int i = 0; i < constant_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_LIMIT; i++) {
+            sum += [&](auto jinix_arg0) { env->SetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter, cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter); env->SetStaticIntField(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total, cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total); auto jinix_result = (int)env->CallIntMethod(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_other_I, jinix_arg0); cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter = env->GetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter); cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total = env->GetStaticIntField(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total); return jinix_result; }(cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter++);
+            cached_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total += (int)env->GetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_flag) + (int)env->GetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_aliased);
+        }
+        env->SetIntField(c, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_aliased, (int)env->GetIntField(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_once));
+        return sum;
+        """.trim(), transpiler.transpileBody(CachedFields.class.getName(), parsed));
+    }
+
+    @SuppressWarnings("unused")
+    static class Calls {
+        int touched = 0;
+        private int twice(int a) { return a * 2; }
+        private void touch() { touched++; }
+        static int fib(int n) { return n < 2 ? n : fib(n - 1) + fib(n - 2); }
+        private int sum(int[] values) {
+            int sum = 0;
+            for (int v : values) sum += v;
+            return sum;
+        }
+        int virtual() { return 1; }
+
+        int method() {
+            int[] values = new int[] {1, 2, 3};
+            touch();
+            return twice(fib(10)) + sum(values) + virtual();
+        }
+    }
+
+    @Test
+    void callGraph() {
+        var parsed = parseTestPath(Calls.class, "method");
+        transpiler.analyzeCalls(Map.of(Calls.class.getName(), List.of(parsed)));
+
+        assertEquals("""
+        JinixArray<jint, jintArray> values(env, {1, 2, 3});
+        jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_touch(env, thisObject);
+        return jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_twice_I(env, thisObject, jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_fib_I(env, nullptr, 10)) + jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_sum_AI(env, thisObject, values) + (int)env->CallIntMethod(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_Calls_virtual);
+        """.trim(), transpiler.transpileBody(Calls.class.getName(), parsed));
+        assertEquals("""
+        static inline void jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_touch(JNIEnv *env, jobject thisObject) {
+            (int)PostfixAddIntField(env, thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_Calls_touched, 1);
+        }
+        static inline jint jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_twice_I(JNIEnv *env, jobject thisObject, jint a) {
+            return a * 2;
+        }
+        static inline jint jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_fib_I(JNIEnv *env, jobject thisObject, jint n) {
+            return n < 2 ? n : jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_fib_I(env, nullptr, n - 1) + jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_fib_I(env, nullptr, n - 2);
+        }
+        static inline jint jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_sum_AI(JNIEnv *env, jobject thisObject, JinixArray<jint, jintArray> &values) {
+            int sum = 0;
+            for (int v : values) {
+                sum += v;
+            }
+            return sum;
+        }
+        """.trim(), String.join("\n", transpiler.transpiledHelpers));
+    }
+
+    @Test
+    void onLoad() {
+        var parsed = parseTestPath(CachedFields.class, "method");
+        var declaration = new HeaderGenerator.JniFunctionDeclaration("method", HeaderGenerator.jniFunctionName(parsed), List.copyOf(parsed.getParameters()), "jint");
+        transpiler.transpileMethod(declaration, CachedFields.class.getName(), parsed);
+
+        assertEquals("""
+        JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+            JNIEnv *env;
+            if (vm->GetEnv((void **) &env, JNI_VERSION_1_8) != JNI_OK) return JNI_ERR;
+            jclass clazz;
+            JNINativeMethod natives_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields[] = {
+                {(char *) "method$native", (char *) "(Lorg/jinix/plugin/compiler/CPPTranspilerTest/CachedFields;)I", (void *) jinix_native_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_method_Lorg_jinix_plugin_compiler_CPPTranspilerTest_CachedFields},
+            };
+            clazz = env->FindClass("org/jinix/plugin/compiler/CPPTranspilerTest$CachedFields");
+            if (clazz == nullptr || env->RegisterNatives(clazz, natives_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, 1) != JNI_OK) return JNI_ERR;
+            env->DeleteLocalRef(clazz);
+            return JNI_VERSION_1_8;
+        }
+        """.trim(), transpiler.transpileOnLoad());
+        assertEquals("""
+        bool jinix_init_class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields(JNIEnv *env) {
+            try {
+                static bool initialized = [env] {
+                    class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields = JinixGlobalClass(env, "org/jinix/plugin/compiler/CPPTranspilerTest/CachedFields");
+                    if (class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields == nullptr) throw JinixPendingException();
+                    org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_other_I = env->GetMethodID(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, "other", "(I)I");
+                    if (org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_other_I == nullptr) throw JinixPendingException();
+                    org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter = env->GetFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, "counter", "I");
+                    if (org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_counter == nullptr) throw JinixPendingException();
+                    org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total = env->GetStaticFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, "total", "I");
+                    if (org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_total == nullptr) throw JinixPendingException();
+                    org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_flag = env->GetFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, "flag", "I");
+                    if (org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_flag == nullptr) throw JinixPendingException();
+                    org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_aliased = env->GetFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, "aliased", "I");
+                    if (org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_aliased == nullptr) throw JinixPendingException();
+                    org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_once = env->GetFieldID(class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields, "once", "I");
+                    if (org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields_once == nullptr) throw JinixPendingException();
+                    return true;
+                }();
+                return initialized;
+            } catch (const JinixPendingException &) {
+                return false;
+            }
+        }
+        """.trim(), transpiler.transpileJniInitialization());
+        assertEquals("""
+        static bool jinix_init_natives_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields(JNIEnv *env) {
+            try {
+                static bool initialized = [env] {
+                    if (!jinix_init_class_org_jinix_plugin_compiler_CPPTranspilerTest_CachedFields(env)) throw JinixPendingException();
+                    return true;
+                }();
+                return initialized;
+            } catch (const JinixPendingException &) {
+                return false;
+            }
+        }
+        """.trim(), transpiler.transpileNativesInitialization(CachedFields.class.getName()));
+    }
+
+    @Test
+    void metrics() {
+        var parsed = parseTestPath(Calls.class, "method");
+        var declaration = new HeaderGenerator.JniFunctionDeclaration("method", HeaderGenerator.jniFunctionName(parsed), List.copyOf(parsed.getParameters()), "jint");
+        transpiler.setMetrics(true);
+        transpiler.beforeTranspilation(Map.of(Calls.class.getName(), List.of(parsed)));
+
+        assertEquals("""
+        jint jinix_native_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_method(JNIEnv *env, jobject thisObject) {
+            JinixMetricsScope jinix_metrics(0);
+            if (!jinix_init_natives_org_jinix_plugin_compiler_CPPTranspilerTest_Calls(env)) return {};
+            JinixArray<jint, jintArray> values(env, {1, 2, 3});
+            jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_touch(env, thisObject);
+            return jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_twice_I(env, thisObject, jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_fib_I(env, nullptr, 10)) + jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_sum_AI(env, thisObject, values) + (int)(JinixCountUpcall(), env->CallIntMethod(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_Calls_virtual));
+        }
+        """.trim(), transpiler.transpileMethod(declaration, Calls.class.getName(), parsed));
+        assertEquals("""
+        const int jinix_metrics_method_count = 1;
+        const char *const jinix_metrics_names[] = {
+            "org.jinix.plugin.compiler.CPPTranspilerTest$Calls.method",
+        };
+        """.trim(), transpiler.transpileMetricNames());
+        assertEquals("""
+        static inline void jinix_org_jinix_plugin_compiler_CPPTranspilerTest_Calls_touch(JNIEnv *env, jobject thisObject) {
+            (int)(JinixCountFieldAccess(), PostfixAddIntField(env, thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_Calls_touched, 1));
+        }
+        """.trim(), transpiler.transpiledHelpers.getFirst());
+    }
+
+    @SuppressWarnings("unused")
+    static class Constants {
+        static final long BIG = 1L << 40;
+        static final char NEXT = 'A' + 1;
+        static final double HALF = CachedFields.LIMIT / 20.0;
+        static final String GREETING = "Hi " + BIG;
+        static int notFinal = 1;
+
+        long method() {
+            return BIG + NEXT + (long) HALF + Integer.MAX_VALUE + Constants.BIG + notFinal;
+        }
+
+        void greet() {
+            take(GREETING);
+        }
+
+        void take(String greeting) {}
+    }
+
+    @Test
+    void constants() {
+        var parsed = parseTestPath(Constants.class, "method");
+
+        assertEquals("""
+        return constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_BIG + constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_NEXT + (long)constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_HALF + constant_java_lang_Integer_MAX_VALUE + constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_BIG + (int)env->GetStaticIntField(class_org_jinix_plugin_compiler_CPPTranspilerTest_Constants, org_jinix_plugin_compiler_CPPTranspilerTest_Constants_notFinal);
+        """.trim(), transpiler.transpileBody(Constants.class.getName(), parsed));
+        assertEquals(List.of(
+                "constexpr jint constant_java_lang_Integer_MAX_VALUE = 2147483647;",
+                "constexpr jlong constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_BIG = 1099511627776LL;",
+                "constexpr jdouble constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_HALF = 0.5;",
+                "constexpr jchar constant_org_jinix_plugin_compiler_CPPTranspilerTest_Constants_NEXT = (jchar) 66;"
+        ), List.copyOf(transpiler.constants.values()));
+
+        // Strings are objects in native code, so they are not inlined
+        assertEquals("""
+        env->CallVoidMethod(thisObject, org_jinix_plugin_compiler_CPPTranspilerTest_Constants_take_Ljava_lang_String, env->GetStaticObjectField(class_org_jinix_plugin_compiler_CPPTranspilerTest_Constants, org_jinix_plugin_compiler_CPPTranspilerTest_Constants_GREETING));
+        """.trim(), transpiler.transpileBody(Constants.class.getName(), parseTestPath(Constants.class, "greet")));
+    }
+
+    @Test
+    void profitability() {
+        var parsed = parseTestPath(CachedFields.class, "method");
+        var declaration = new HeaderGenerator.JniFunctionDeclaration("method", HeaderGenerator.jniFunctionName(parsed), List.copyOf(parsed.getParameters()), "jint");
+        transpiler.transpileMethod(declaration, CachedFields.class.getName(), parsed);
+
+        var cost = transpiler.costs.get(CachedFields.class.getName() + ".method");
+        assertEquals(6, cost.callsPerCall());
+        assertEquals(7, cost.callsPerIteration());
+        assertFalse(cost.isProfitable());
+        assertEquals("6 JNI calls per call, 7 per loop iteration, likely slower than the JIT: " +
+                "7 JNI calls in every loop iteration (fieldGet: 4, fieldSet: 2, upcall: 1)", cost.summary());
+    }
+
+    @SuppressWarnings("unused")
+    static class Kernel {
+        static int counter = 0;
+
+        @Nativize(downcall = true)
+        static long dot(int[] a, int[] b, int n) {
+            long sum = 0;
+            for (int i = 0; i < n; i++) sum += (long) a[i] * b[i];
+            return sum;
+        }
+
+        @Nativize(downcall = true)
+        static int count() { return counter++; }
+    }
+
+    @Test
+    void downcalls() {
+        var parsed = parseTestPath(Kernel.class, "dot");
+        var declaration = new HeaderGenerator.JniFunctionDeclaration("dot", HeaderGenerator.downcallFunctionName(Kernel.class.getName(), parsed), List.copyOf(parsed.getParameters()), "jlong");
+
+        assertEquals("""
+        static inline jlong jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_Kernel_dot___I_II_J_body(jint *jarray_a, jint jarray_a_length, jint *jarray_b, jint jarray_b_length, jint n) {
+            JNIEnv *env = nullptr;    // Only passed to helpers, which cannot use JNI here
+            JinixArray<jint, jintArray> a(jarray_a, jarray_a_length);
+            JinixArray<jint, jintArray> b(jarray_b, jarray_b_length);
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += (long)a[i] * b[i];
+            }
+            return sum;
+        }
+
+        jlong jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_Kernel_dot___I_II_J(jint *jarray_a, jint jarray_a_length, jint *jarray_b, jint jarray_b_length, jint n) {
+            try {
+                return jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_Kernel_dot___I_II_J_body(jarray_a, jarray_a_length, jarray_b, jarray_b_length, n);
+            } catch (const JinixThrow &thrown) {
+                jinix_downcall_thrown = thrown;
+                return jlong();
+            }
+        }
+        """.trim(), transpiler.transpileDowncall(declaration, Kernel.class.getName(), parsed));
+
+        var count = parseTestPath(Kernel.class, "count");
+        assertThrows(NativizationException.class, () -> transpiler.transpileDowncall(declaration, Kernel.class.getName(), count));
+    }
+
+    @SuppressWarnings("unused")
+    static class ParallelKernel {
+        @Nativize(downcall = true, parallel = true)
+        static double reverse(double[] out, double[] in, int n, double factor) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                out[i] = in[n - 1 - i] * factor;
+                sum += out[i];
+            }
+            for (int i = 1; i < n; i++) out[i] += out[i - 1];
+            return sum;
+        }
+
+        @Nativize(downcall = true, batch = true, parallel = true)
+        static int score(int a, int b) { return a * 31 + b; }
+
+        @Nativize(batch = true, parallel = true)
+        static int twice(int a) { return a * 2; }
+
+        @Nativize(batch = true, parallel = true)
+        static int lookup(int a) {
+            int[] table = {1, 2};
+            return table[a];
+        }
+
+        @Nativize(downcall = true, parallel = true)
+        static void countdown(int[] out, int n) {
+            for (int i = n - 1; i >= 0; i--) out[i] = i;
+        }
+
+        @Nativize(downcall = true, parallel = true)
+        static void accumulate(int[] out, int n) {
+            for (int i = 0; i < n; i++) {
+                int[] row = out;
+                row[0] += i;
+            }
+        }
+    }
+
+    @Test
+    void parallelLoops() {
+        var parsed = parseTestPath(ParallelKernel.class, "reverse");
+        var declaration = new HeaderGenerator.JniFunctionDeclaration("reverse", HeaderGenerator.downcallFunctionName(ParallelKernel.class.getName(), parsed), List.copyOf(parsed.getParameters()), "jdouble");
+
+        assertEquals("""
+        static inline jdouble jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_reverse___D_DID_D_body(jdouble *jarray_out, jint jarray_out_length, jdouble *jarray_in, jint jarray_in_length, jint n, jdouble factor) {
+            JNIEnv *env = nullptr;    // Only passed to helpers, which cannot use JNI here
+            JinixArray<jdouble, jdoubleArray> out(jarray_out, jarray_out_length);
+            JinixArray<jdouble, jdoubleArray> in(jarray_in, jarray_in_length);
+            double sum = 0;
+            {
+                JinixThrow jinix_thrown = {};
+                #pragma omp parallel for num_threads(jinix_parallel_threads) reduction(+:sum) if((void *) out.elements != (void *) in.elements)
+                for (int i = 0; i < n; i++) {
+                    try {
+                        out[i] = in[n - 1 - i] * factor;
+                        sum += out[i];
+                    } catch (const JinixThrow &thrown) {
+                        jinix_thrown.record(thrown, i);
+                    }
+                }
+                if (jinix_thrown.kind != JinixThrow::NONE) throw jinix_thrown;
+            }
+            for (int i = 1; i < n; i++) {
+                out[i] += out[i - 1];
+            }
+            return sum;
+        }
+
+        jdouble jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_reverse___D_DID_D(jdouble *jarray_out, jint jarray_out_length, jdouble *jarray_in, jint jarray_in_length, jint n, jdouble factor) {
+            try {
+                return jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_reverse___D_DID_D_body(jarray_out, jarray_out_length, jarray_in, jarray_in_length, n, factor);
+            } catch (const JinixThrow &thrown) {
+                jinix_downcall_thrown = thrown;
+                return jdouble();
+            }
+        }
+        """.trim(), transpiler.transpileDowncall(declaration, ParallelKernel.class.getName(), parsed));
+
+        // A local array may alias a shared one, so its iterations are not independent
+        parsed = parseTestPath(ParallelKernel.class, "accumulate");
+        declaration = new HeaderGenerator.JniFunctionDeclaration("accumulate", HeaderGenerator.downcallFunctionName(ParallelKernel.class.getName(), parsed), List.copyOf(parsed.getParameters()), "void");
+        assertEquals("""
+        static inline void jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_accumulate___II_V_body(jint *jarray_out, jint jarray_out_length, jint n) {
+            JNIEnv *env = nullptr;    // Only passed to helpers, which cannot use JNI here
+            JinixArray<jint, jintArray> out(jarray_out, jarray_out_length);
+            for (int i = 0; i < n; i++) {
+                JinixArray<jint, jintArray> &row = out;
+                row[0] += i;
+            }
+        }
+
+        void jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_accumulate___II_V(jint *jarray_out, jint jarray_out_length, jint n) {
+            try {
+                return jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_accumulate___II_V_body(jarray_out, jarray_out_length, n);
+            } catch (const JinixThrow &thrown) {
+                jinix_downcall_thrown = thrown;
+                return void();
+            }
+        }
+        """.trim(), transpiler.transpileDowncall(declaration, ParallelKernel.class.getName(), parsed));
+    }
+
+    @Test
+    void batch() {
+        var parsed = parseTestPath(ParallelKernel.class, "score");
+        var declaration = new HeaderGenerator.JniFunctionDeclaration("score", HeaderGenerator.downcallFunctionName(ParallelKernel.class.getName(), parsed), List.copyOf(parsed.getParameters()), "jint");
+
+        assertEquals("""
+        jint jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_score__II_I(jint a, jint b) {
+            JNIEnv *env = nullptr;    // Only passed to helpers, which cannot use JNI here
+            return a * 31 + b;
+        }
+
+        void jinix_batch_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_score_II(JNIEnv *env, jobject thisObject, jintArray jarray_a, jintArray jarray_b, jintArray jarray_jinix_results) {
+            if (!JinixCheckBatch(env, jarray_jinix_results, {jarray_a, jarray_b})) return;
+            JinixArray<jint, jintArray> a(env, jarray_a, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+            JinixArray<jint, jintArray> b(env, jarray_b, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+            JinixArray<jint, jintArray> jinix_results(env, jarray_jinix_results, JINIX_ARRAY_ALLOW_CRITICAL);
+            a.pin();
+            b.pin();
+            jinix_results.pin();
+            JinixScopeExit jinix_unpin([&] { jinix_results.unpin(); b.unpin(); a.unpin(); });
+            #pragma omp parallel for num_threads(jinix_parallel_threads)
+            for (jsize jinix_i = 0; jinix_i < jinix_results.length; jinix_i++) {
+                jinix_results.elements[jinix_i] = jinix_downcall_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_score__II_I(a.elements[jinix_i], b.elements[jinix_i]);
+            }
+        }
+        """.trim(), transpiler.transpileDowncall(declaration, ParallelKernel.class.getName(), parsed));
+        assertEquals(List.of("{(char *) \"score$native\", (char *) \"([I[I[I)V\", (void *) jinix_batch_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_score_II}"),
+                transpiler.registeredNatives.get(ParallelKernel.class.getName()));
+
+        // JNI IDs are initialized before the arrays are pinned
+        parsed = parseTestPath(ParallelKernel.class, "twice");
+        declaration = new HeaderGenerator.JniFunctionDeclaration("twice", HeaderGenerator.jniFunctionName(parsed), List.copyOf(parsed.getParameters()), "jint");
+        assertEquals("""
+        jint jinix_native_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_twice_I(JNIEnv *env, jobject thisObject, jint a) {
+            if (!jinix_init_natives_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel(env)) return {};
+            return a * 2;
+        }
+
+        void jinix_batch_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_twice_I(JNIEnv *env, jobject thisObject, jintArray jarray_a, jintArray jarray_jinix_results) {
+            if (!JinixCheckBatch(env, jarray_jinix_results, {jarray_a})) return;
+            if (!jinix_init_natives_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel(env)) return;
+            JinixArray<jint, jintArray> a(env, jarray_a, JINIX_ARRAY_READ_ONLY | JINIX_ARRAY_ALLOW_CRITICAL);
+            JinixArray<jint, jintArray> jinix_results(env, jarray_jinix_results, JINIX_ARRAY_ALLOW_CRITICAL);
+            a.pin();
+            jinix_results.pin();
+            JinixScopeExit jinix_unpin([&] { jinix_results.unpin(); a.unpin(); });
+            #pragma omp parallel for num_threads(jinix_parallel_threads)
+            for (jsize jinix_i = 0; jinix_i < jinix_results.length; jinix_i++) {
+                jinix_results.elements[jinix_i] = jinix_native_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_twice_I(env, thisObject, a.elements[jinix_i]);
+            }
+        }
+        """.trim(), transpiler.transpileMethod(declaration, ParallelKernel.class.getName(), parsed));
+
+        // Exceptions are rethrown after the threads finish, and raised in Java by the registered wrapper
+        parsed = parseTestPath(ParallelKernel.class, "lookup");
+        declaration = new HeaderGenerator.JniFunctionDeclaration("lookup", HeaderGenerator.jniFunctionName(parsed), List.copyOf(parsed.getParameters()), "jint");
+        var lookup = transpiler.transpileMethod(declaration, ParallelKernel.class.getName(), parsed);
+        assertEquals("""
+        {
+            JinixThrow jinix_thrown = {};
+            #pragma omp parallel for num_threads(jinix_parallel_threads)
+            for (jsize jinix_i = 0; jinix_i < jinix_results.length; jinix_i++) {
+                try {
+                    jinix_results.elements[jinix_i] = jinix_native_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_lookup_I(env, thisObject, a.elements[jinix_i]);
+                } catch (const JinixThrow &thrown) {
+                    jinix_thrown.record(thrown, jinix_i);
+                }
+            }
+            if (jinix_thrown.kind != JinixThrow::NONE) throw jinix_thrown;
+        }
+        """.indent(4) + "}", lookup.substring(lookup.indexOf("    {\n")));
+        assertEquals(List.of(
+                "{(char *) \"lookup$native\", (char *) \"(I)I\", (void *) JinixEntry<jinix_native_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_lookup_I>::call}",
+                "{(char *) \"lookup$native\", (char *) \"([I[I)V\", (void *) JinixEntry<jinix_batch_org_jinix_plugin_compiler_CPPTranspilerTest_ParallelKernel_lookup_I>::call}"),
+                transpiler.registeredNatives.get(ParallelKernel.class.getName()).subList(3, 5));
+
+        // Iterations of a descending loop are ordered by the complement of their index, Java runs the highest first
+        parsed = parseTestPath(ParallelKernel.class, "countdown");
+        declaration = new HeaderGenerator.JniFunctionDeclaration("countdown", HeaderGenerator.downcallFunctionName(ParallelKernel.class.getName(), parsed), List.copyOf(parsed.getParameters()), "void");
+        assertTrue(transpiler.transpileMethod(declaration, ParallelKernel.class.getName(), parsed)
+                .contains("jinix_thrown.record(thrown, ~i);"));
+    }
+
+    @Test
+    void parallelTranspilation(@TempDir Path directory) throws IOException {
+        List<String> outputs = new ArrayList<>();
+        for (boolean parallel : new boolean[]{false, true, true}) {
+            // Methods of one class share their compilation unit
+            var unit = parseTestFile();
+            Map<String, List<MethodDeclaration>> methods = new LinkedHashMap<>();
+            for (Class<?> clazz : List.of(ParallelKernel.class, Kernel.class)) {
+                methods.put(clazz.getName(), testClass(unit, clazz).getMethods().stream()
+                        .filter(m -> m.isAnnotationPresent(Nativize.class) && !m.getNameAsString().equals("count")).toList());
+            }
+
+            var output = directory.resolve(String.valueOf(outputs.size())).toFile();
+            output.mkdirs();
+            var declarations = new HeaderGenerator().generateHeader(methods, new File(output, NativeCompiler.HEADER_NAME));
+            var transpiler = new CPPTranspiler(solver, null);
+            transpiler.setParallel(parallel);
+            var sources = transpiler.transpile(declarations, methods, output);
+
+            var contents = new StringBuilder();
+            for (File file : sources.units()) contents.append(Files.readString(file.toPath()));
+            contents.append(Files.readString(sources.sharedHeader().toPath()));
+            outputs.add(contents.toString());
+        }
+
+        assertEquals(outputs.get(0), outputs.get(1));
+        assertEquals(outputs.get(0), outputs.get(2));
+    }
+
     private MethodDeclaration parseTestPath(Class<?> clazz, String method) {
+        var dummyClass = testClass(parseTestFile(), clazz);
+        return dummyClass.getMethods().stream().filter(m -> m.getNameAsString().equals(method)).findFirst().orElseThrow();
+    }
+
+    private CompilationUnit parseTestFile() {
         String source;
         try {
             source = Files.readString(Path.of("src/test/java/org/jinix/plugin/compiler/CPPTranspilerTest.java"));
@@ -374,10 +977,12 @@ public class CPPTranspilerTest {
             throw new RuntimeException(e);
         }
         var parser = new JavaParser(new ParserConfiguration().setSymbolResolver(this.resolver).setLanguageLevel(ParserConfiguration.LanguageLevel.JAVA_21));
-        var compilationUnit = parser.parse(source).getResult().orElseThrow();
+        return parser.parse(source).getResult().orElseThrow();
+    }
+
+    private static ClassOrInterfaceDeclaration testClass(CompilationUnit compilationUnit, Class<?> clazz) {
         var thisClass = compilationUnit.getClassByName(CPPTranspilerTest.class.getSimpleName()).orElseThrow();
-        var dummyClass = (ClassOrInterfaceDeclaration) thisClass.getChildNodes().stream().filter(n -> n instanceof ClassOrInterfaceDeclaration d && d.getNameAsString().equals(clazz.getSimpleName())).findFirst().orElseThrow();
-        return dummyClass.getMethods().stream().filter(m -> m.getNameAsString().equals(method)).findFirst().orElseThrow();
+        return (ClassOrInterfaceDeclaration) thisClass.getChildNodes().stream().filter(n -> n instanceof ClassOrInterfaceDeclaration d && d.getNameAsString().equals(clazz.getSimpleName())).findFirst().orElseThrow();
     }
 
     public MethodDeclaration parse(String code){
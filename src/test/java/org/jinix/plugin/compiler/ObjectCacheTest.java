@@ -0,0 +1,121 @@
+package org.jinix.plugin.compiler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectCacheTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void keys() throws IOException {
+        var unit = Files.writeString(directory.resolve("unit.cpp"), "int f() { return 1; }").toFile();
+        var command = List.of("g++", "-O2", "-c", "unit.cpp");
+        var key = cache("gcc 1").key(command, List.of(unit));
+
+        assertEquals(key, cache("gcc 1").key(command, List.of(unit)));
+        // Missing inputs, like the profile of a unit which was not run, are skipped
+        assertEquals(key, cache("gcc 1").key(command, List.of(unit, directory.resolve("unit.gcda").toFile())));
+        assertNotEquals(key, cache("gcc 2").key(command, List.of(unit)));
+        assertNotEquals(key, cache("gcc 1").key(List.of("g++", "-O2 -c", "unit.cpp"), List.of(unit)));
+
+        Files.writeString(unit.toPath(), "int f() { return 2; }");
+        assertNotEquals(key, cache("gcc 1").key(command, List.of(unit)));
+    }
+
+    @Test
+    void restoreStored() throws IOException {
+        var cache = cache("gcc 1");
+        var object = Files.write(directory.resolve("unit.o"), new byte[]{1, 2, 3}).toFile();
+        var restored = directory.resolve("restored.o").toFile();
+
+        assertFalse(cache.restore("00key", restored));
+        assertFalse(restored.exists());
+        cache.store("00key", object);
+        assertTrue(cache.restore("00key", restored));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(restored.toPath()));
+
+        // Another build sharing the directory
+        assertTrue(cache("gcc 1").restore("00key", directory.resolve("other.o").toFile()));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws IOException {
+        var cache = new ObjectCache(directory.resolve("cache").toFile(), 1000, "gcc 1");
+        var object = Files.write(directory.resolve("unit.o"), new byte[200]).toFile();
+        var now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            cache.store(key(i), object);
+            Files.setLastModifiedTime(cachedPath(key(i)), FileTime.fromMillis(now - (10 - i) * 60_000L));
+        }
+        // Used by this build, so it is the most recent
+        assertTrue(cache.restore(key(0), directory.resolve("restored.o").toFile()));
+
+        cache.finish();
+        // 2000 bytes are evicted down to 90% of the limit, 4 objects
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i == 0 || i >= 7, Files.exists(cachedPath(key(i))), key(i));
+        }
+    }
+
+    @Test
+    void statistics() throws IOException {
+        var object = Files.write(directory.resolve("unit.o"), new byte[]{1}).toFile();
+        var restored = directory.resolve("restored.o").toFile();
+
+        var first = cache("gcc 1");
+        first.store("00stored", object);
+        first.restore("00stored", restored);
+        first.restore("00missing", restored);
+        first.restore("01missing", restored);
+        assertEquals(new ObjectCache.Statistics(1, 2, 1, 2), first.finish());
+
+        var second = cache("gcc 1");
+        for (int i = 0; i < 3; i++) second.restore("00stored", restored);
+        assertEquals(new ObjectCache.Statistics(3, 0, 4, 2), second.finish());
+    }
+
+    @Test
+    void concurrentFinish() throws Exception {
+        int builds = 200;
+        var executor = Executors.newFixedThreadPool(16);
+        try {
+            var results = new ArrayList<Future<ObjectCache.Statistics>>();
+            for (int i = 0; i < builds; i++) {
+                var cache = new ObjectCache(directory.toFile(), Long.MAX_VALUE, "gcc 1");
+                cache.restore("00missing", directory.resolve("out.o").toFile());
+                results.add(executor.submit((Callable<ObjectCache.Statistics>) cache::finish));
+            }
+            long maxTotal = 0;
+            for (var result : results) maxTotal = Math.max(maxTotal, result.get().totalMisses());
+            // Every build added its miss to the totals, none of them failed to lock
+            assertEquals(builds, maxTotal);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private ObjectCache cache(String compilerVersion) {
+        return new ObjectCache(directory.resolve("cache").toFile(), Long.MAX_VALUE, compilerVersion);
+    }
+
+    private static String key(int i) {
+        return "%02d".formatted(i) + "key";
+    }
+
+    private Path cachedPath(String key) {
+        return directory.resolve("cache").resolve(key.substring(0, 2)).resolve(key + ".o");
+    }
+}